@@ -6,17 +6,11 @@ package no.ntnu.fp.net.co;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.ConnectException;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Timer;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.cl.KtnDatagram.Flag;
-import no.ntnu.fp.net.co.ClSocketReceiver;
 import no.ntnu.fp.net.co.Connection;
 
 /**
@@ -38,7 +32,11 @@ public abstract class AbstractConnection implements Connection {
      * the timeout. Setting RETRANSMIT too low will result in a lot of traffic
      * and duplicate packets because of the delays in A2. Note: Low values of
      * RETRANSMIT will generate duplicate packets independently of the setting
-     * for duplicate packets in the configuration for A2!
+     * for duplicate packets in the configuration for A2!<br>
+     * <br>
+     * This is only the initial value: once the round trip time has been
+     * measured, each connection uses the timeout computed by its
+     * {@link #rttEstimator}.
      */
     protected final static int RETRANSMIT = 800;
 
@@ -47,44 +45,59 @@ public abstract class AbstractConnection implements Connection {
      * the case of many errors, while setting it too low can cause failure of
      * operation because of the delays in A2. It is now set to three times the
      * {@link #RETRANSMIT} value, for a total of 4 possible transmissions before
-     * timing out.
+     * timing out. Like RETRANSMIT, this is replaced by
+     * {@link RttEstimator#getReceiveTimeout()} once the round trip time is
+     * known.
      */
     protected static int TIMEOUT = 3 * RETRANSMIT + (RETRANSMIT / 2);
 
+    /** Capacity of the internal and external packet queues. */
+    protected static final int QUEUE_CAPACITY = 256;
+
     /**
-     * To prevent more than one thread to concurrently execute certain parts of
-     * doReceive(). DO NOT alter the value of this variable unless you KNOW what
-     * you are doing, as this may hang the implementation or cause
-     * BindExceptions in A2 - you are warned!
+     * The ack field of ACKs and data packets holds the cumulative ack in its
+     * low bits and the receive window of the sender in the bits above this
+     * shift. Flagged packets lose their payload in the connectionless layer,
+     * so the header is the only place for the window. Sequence numbers must
+     * therefore stay below 2^24, which leaves room for some 16 million
+     * packets per connection.
      */
-    private boolean isReceiving;
+    private static final int WINDOW_SHIFT = 24;
+
+    /** Largest receive window that fits in the ack field, in packets. */
+    protected static final int MAX_ADVERTISED_WINDOW = 255;
 
     /**
-     * Unhandled internal packets. Packets are put in this queue when waiting
-     * for a data packet and receiving an internal packet (e.g. ACK).
+     * Unhandled internal packets (e.g. ACK). The receive dispatcher puts
+     * every flagged packet except FIN in this queue.
      */
-    private List<KtnDatagram> internalQueue;
+    private PacketQueue internalQueue;
 
     /**
-     * Unhandled external (application-destined) packets. Packets are put in
-     * this queue when waiting for internal packets (e.g. ACK) and receiving a
-     * data packet.
+     * Unhandled external (application-destined) packets. The receive
+     * dispatcher puts every data packet in this queue.
      */
-    private List<KtnDatagram> externalQueue;
+    private PacketQueue externalQueue;
+
+    /**
+     * Unhandled FINs. They are kept apart as both the application and the
+     * protocol threads may have to react to them.
+     */
+    private PacketQueue finQueue;
 
     /**
      * Identifies the state of the connection.
      */
-    protected State state;
+    protected volatile State state;
 
     /** Local and remote ip-address. */
     protected String myAddress, remoteAddress;
     /** Local and remote port number. */
     protected int myPort, remotePort;
     /** Reference to the last packet received. */
-    protected KtnDatagram lastValidPacketReceived;
+    protected volatile KtnDatagram lastValidPacketReceived;
     /** Reference to the last data packet sent. */
-    protected KtnDatagram lastDataPacketSent;
+    protected volatile KtnDatagram lastDataPacketSent;
     /** The current sequence number used in packets to be sent. */
     protected int nextSequenceNo;
 
@@ -93,15 +106,22 @@ public abstract class AbstractConnection implements Connection {
      /** If a FIN has been received, it is stored in disconnectRequest. */
      protected KtnDatagram disconnectRequest;
 
+    /** Set by {@link #endOfStream()}. */
+    private volatile boolean endOfStream;
+
+    /** Round trip time estimate, giving the retransmission timeout. */
+    protected RttEstimator rttEstimator;
+
     /** Initialize variables to default values. */
     public AbstractConnection() {
-        internalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
-        externalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
-        isReceiving = false;
+        internalQueue = new PacketQueue(QUEUE_CAPACITY);
+        externalQueue = new PacketQueue(QUEUE_CAPACITY);
+        finQueue = new PacketQueue(4);
         nextSequenceNo = (int)(Math.random() * 10000 + 1);
         disconnectRequest = null;
         lastDataPacketSent = null;
         lastValidPacketReceived = null;
+        rttEstimator = new RttEstimator(RETRANSMIT);
         state = State.CLOSED;
     }
 
@@ -124,6 +144,9 @@ public abstract class AbstractConnection implements Connection {
      * <li>Local port
      * <li>Flag to NONE.
      * <li>Sequence no.
+     * <li>Ack no. to the sequence number of {@link #lastValidPacketReceived},
+     * if set, and the receive window, see {@link #encodeAck(int, int)}. This
+     * piggybacks an ack for the other direction on the data.
      * <li>Payload.
      * </ol>
      * 
@@ -134,6 +157,53 @@ public abstract class AbstractConnection implements Connection {
     protected KtnDatagram constructDataPacket(String payload) {
         if (payload == null) throw new IllegalArgumentException("Payload can not be null.");
 
+        KtnDatagram packet = constructDataHeader();
+        packet.setPayload(payload);
+
+        return packet;
+    }
+
+    /**
+     * Construct a datagram with a payload serialized before, as
+     * {@link #constructDataPacket(String)} does. The payload bytes and the
+     * checksum are the shared ones, so only the header is built here.
+     * 
+     * @param payload
+     *            Payload for packet, can not be null.
+     * @return Initialised datagram.
+     */
+    protected KtnDatagram constructDataPacket(SharedPayload payload) {
+        if (payload == null) throw new IllegalArgumentException("Payload can not be null.");
+
+        KtnDatagram packet = constructDataHeader();
+        payload.applyTo(packet);
+
+        return packet;
+    }
+
+    /**
+     * Construct a datagram with a payload of raw bytes, as
+     * {@link #constructDataPacket(String)} does, but without serializing
+     * it. The checksum is the given one.
+     * 
+     * @param payload
+     *            Payload for packet, can not be null.
+     * @param checksum
+     *            CRC32 of the payload bytes.
+     * @return Initialised datagram.
+     */
+    protected KtnDatagram constructDataPacket(byte[] payload, long checksum) {
+        if (payload == null) throw new IllegalArgumentException("Payload can not be null.");
+
+        KtnDatagram packet = constructDataHeader();
+        packet.setPayloadAsBytes(payload);
+        packet.setChecksum(checksum);
+
+        return packet;
+    }
+
+    /** @return A data packet without payload, see {@link #constructDataPacket(String)}. */
+    private KtnDatagram constructDataHeader() {
         KtnDatagram packet = new KtnDatagram();
         packet.setDest_port(remotePort);
         packet.setDest_addr(remoteAddress);
@@ -141,8 +211,8 @@ public abstract class AbstractConnection implements Connection {
         packet.setSrc_port(myPort);
         packet.setFlag(Flag.NONE);
         packet.setSeq_nr(nextSequenceNo++);
-        packet.setPayload(payload);
-
+        KtnDatagram lastReceived = lastValidPacketReceived;
+        if (lastReceived != null) packet.setAck(encodeAck(lastReceived.getSeq_nr(), advertisedWindow()));
         return packet;
     }
 
@@ -189,7 +259,7 @@ public abstract class AbstractConnection implements Connection {
     }
 
     /**
-     * Sends a packet. Hides the underlying ClSocket from the students, and is
+     * Sends a packet. Hides the underlying {@link Transport} from the students, and is
      * there to clearify that there are not only the other send-methods that
      * exists.
      * 
@@ -197,16 +267,16 @@ public abstract class AbstractConnection implements Connection {
      *            The {@link KtnDatagram} to send.
      * @throws IOException
      *             If thrown by the underlying
-     *             {@link ClSocket#send(KtnDatagram)}.
+     *             {@link Transport#send(KtnDatagram)}.
      * @throws ClException
      *             If thrown by the underlying
-     *             {@link ClSocket#send(KtnDatagram)}.
+     *             {@link Transport#send(KtnDatagram)}.
      * @see #sendDataPacketWithRetransmit(KtnDatagram)
      * @see #sendAck(KtnDatagram, boolean)
-     * @see ClSocket#send(KtnDatagram)
+     * @see Transport#send(KtnDatagram)
      */
     protected synchronized void simplySendPacket(KtnDatagram packet) throws ClException, IOException {
-        new ClSocket().send(packet);
+        Transports.create().send(packet);
     }
 
     /**
@@ -223,7 +293,7 @@ public abstract class AbstractConnection implements Connection {
      *         null)
      * @throws IOException
      *             thrown if unable to send packet.
-     * @see no.ntnu.fp.net.cl.ClSocket#send(KtnDatagram)
+     * @see Transport#send(KtnDatagram)
      */
     protected synchronized KtnDatagram sendDataPacketWithRetransmit(KtnDatagram packet)
             throws IOException {
@@ -240,13 +310,18 @@ public abstract class AbstractConnection implements Connection {
 
         lastDataPacketSent = packet;
 
-        // Create a timer that sends the packet and retransmits every
-        // RETRANSMIT milliseconds until cancelled.
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new SendTimer(new ClSocket(), packet), 0, RETRANSMIT);
+        // Send the packet and retransmit every retransmission timeout until
+        // cancelled, on the shared timer wheel.
+        SendTimer sendTimer = new SendTimer(Transports.create(), packet);
+        long sent = System.currentTimeMillis();
+        sendTimer.start(rttEstimator.getTimeout());
 
         KtnDatagram ack = receiveAck();
-        timer.cancel();
+        sendTimer.cancel();
+
+        // Karn's rule: only time packets that were sent exactly once.
+        if (ack == null) rttEstimator.backoff();
+        else if (sendTimer.getTries() == 1) rttEstimator.addSample(System.currentTimeMillis() - sent);
 
         return ack;
     }
@@ -279,18 +354,75 @@ public abstract class AbstractConnection implements Connection {
          * failed - and write this to the Log.
          */
     
-        int tries = 3;
-        boolean sent = false;
+        if (!synAck) {
+            sendSelectiveAck(packetToAck, packetToAck.getSeq_nr());
+            return;
+        }
     
-        KtnDatagram ackToSend = constructInternalPacket(synAck ? Flag.SYN_ACK : Flag.ACK);
-        ackToSend.setAck(packetToAck.getSeq_nr());
+        KtnDatagram ackToSend = constructInternalPacket(Flag.SYN_ACK);
+        ackToSend.setAck(encodeAck(packetToAck.getSeq_nr(), advertisedWindow()));
     
+        try {
+            sendAckPacket(ackToSend);
+        }
+        catch (ConnectException e) {
+            nextSequenceNo--;
+            throw e;
+        }
+    }
+
+    /**
+     * Send an ack for the given packet that also carries a cumulative ack.
+     * The ack field holds the cumulative ack, i.e. the highest sequence
+     * number up to which every packet has been received, and the receive
+     * window. The sequence number field echoes the sequence number of the
+     * packet that is acknowledged, so that the sender can also release
+     * packets received out of order. Without a packet to echo, the ACK only
+     * updates the window, and its sequence number is -1.<br>
+     * <br>
+     * An ACK does not occupy a sequence number of its own. This keeps the
+     * data packets from each side contiguous, which the send window in
+     * ConnectionImpl relies on. Like {@link #sendAck(KtnDatagram, boolean)},
+     * failed acks are not retransmitted.
+     * 
+     * @param packetToAck
+     *            The packet that should be acked, or null for a window update.
+     * @param cumulativeAck
+     *            The highest sequence number received without gaps.
+     * @throws ConnectException
+     *             Thrown if unable to send packet.
+     * @see #sendAck(KtnDatagram, boolean)
+     */
+    protected synchronized void sendSelectiveAck(KtnDatagram packetToAck, int cumulativeAck)
+            throws IOException, ConnectException {
+        KtnDatagram ackToSend = constructInternalPacket(Flag.ACK);
+        nextSequenceNo--;
+        ackToSend.setSeq_nr(packetToAck != null ? packetToAck.getSeq_nr() : -1);
+        ackToSend.setAck(encodeAck(cumulativeAck, advertisedWindow()));
+
+        sendAckPacket(ackToSend);
+    }
+
+    /**
+     * Send a constructed ack packet, trying a few times if the other side is
+     * not listening.
+     * 
+     * @param ackToSend
+     *            The ack packet to send.
+     * @throws ConnectException
+     *             Thrown if unable to send packet.
+     */
+    private void sendAckPacket(KtnDatagram ackToSend) throws IOException, ConnectException {
+        int tries = 3;
+        boolean sent = false;
+
         // Send the ack, trying at most `tries' times.
-        Log.writeToLog(ackToSend, "Sending Ack: " + ackToSend.getAck(), "AbstractConnection");
+        Log.writeToLog(ackToSend, "Sending Ack: " + cumulativeAckOf(ackToSend) + ", window "
+                + windowOf(ackToSend), "AbstractConnection");
     
         do {
             try {
-                new ClSocket().send(ackToSend);
+                Transports.create().send(ackToSend);
                 sent = true;
             }
             catch (ClException e) {
@@ -310,15 +442,151 @@ public abstract class AbstractConnection implements Connection {
         while (!sent && (tries-- > 0));
     
         if (!sent) {
-            nextSequenceNo--;
             throw new ConnectException("Unable to send ACK.");
         }
     }
 
     /**
-     * Receives a packet from the connectionless layer. This function handles
-     * concurrency issues related to that only one thread may listen to a port
-     * at the same time.<br>
+     * The number of data packets this side can take in, announced to the
+     * other side in every ACK and data packet. By default this is the free
+     * space in the external queue.
+     * 
+     * @return The receive window in packets, from 0 to
+     *         {@link #MAX_ADVERTISED_WINDOW}.
+     */
+    protected int advertisedWindow() {
+        return Math.min(MAX_ADVERTISED_WINDOW, QUEUE_CAPACITY - externalQueue.size());
+    }
+
+    /**
+     * @return The number of data packets in the external queue, waiting for
+     *         the application.
+     */
+    protected int bufferedPackets() {
+        return externalQueue.size();
+    }
+
+    /**
+     * Pack a cumulative ack and a receive window into the ack field.
+     * 
+     * @param cumulativeAck
+     *            Sequence number, below 2^24.
+     * @param window
+     *            Receive window in packets, clamped to 0 to
+     *            {@link #MAX_ADVERTISED_WINDOW}.
+     * @return The value of the ack field.
+     * @see #cumulativeAckOf(KtnDatagram)
+     * @see #windowOf(KtnDatagram)
+     */
+    protected static int encodeAck(int cumulativeAck, int window) {
+        window = Math.max(0, Math.min(MAX_ADVERTISED_WINDOW, window));
+        return (window << WINDOW_SHIFT) | (cumulativeAck & ((1 << WINDOW_SHIFT) - 1));
+    }
+
+    /**
+     * @return The cumulative ack in the ack field of an ACK, SYN_ACK or data
+     *         packet.
+     */
+    protected static int cumulativeAckOf(KtnDatagram packet) {
+        return packet.getAck() & ((1 << WINDOW_SHIFT) - 1);
+    }
+
+    /**
+     * @return The receive window in the ack field of an ACK, SYN_ACK or data
+     *         packet, in packets.
+     */
+    protected static int windowOf(KtnDatagram packet) {
+        return packet.getAck() >>> WINDOW_SHIFT;
+    }
+
+    /**
+     * Start receiving on the local port of this connection, if that is not
+     * already done. From then on every datagram that arrives on the port is
+     * put in the internal or external queue, also while nobody is waiting for
+     * it. Call this before sending a packet that will be answered, so that
+     * the answer is not missed. With the UDP transport the port is served by
+     * the shared {@link Reactor}, otherwise by a {@link ReceiveDispatcher}.
+     * 
+     * @throws IOException
+     *             If the port could not be bound.
+     * @see ReceiveDispatcher
+     * @see Reactor
+     */
+    protected void startReceiving() throws IOException {
+        if (Transports.UDP.equals(Transports.getType())) {
+            Reactor.getShared().register(myPort, this);
+        }
+        else {
+            ReceiveDispatcher.start(myPort, this);
+        }
+    }
+
+    /**
+     * Stop receiving on the local port of this connection. Packets that
+     * arrive afterwards are lost.
+     */
+    protected void stopReceiving() {
+        if (Transports.UDP.equals(Transports.getType())) {
+            try {
+                Reactor.getShared().unregister(myPort, this);
+            }
+            catch (IOException e) {
+                // No reactor, so nothing to stop.
+            }
+        }
+        else {
+            ReceiveDispatcher.stop(myPort, this);
+        }
+    }
+
+    /**
+     * Called by the receive dispatcher for every datagram that arrives on the
+     * local port. Data packets go to the external queue and wake the
+     * application, FINs wake every waiting thread, and other flagged packets
+     * go to the internal queue and wake one protocol thread. Packets that do
+     * not fit in a full queue are dropped, and left to be retransmitted.
+     * 
+     * @param packet
+     *            The received datagram.
+     */
+    void deliver(KtnDatagram packet) {
+        if (packet.getFlag() == Flag.FIN) {
+            Log.writeToLog("Received a FIN", "AbstractConnection");
+            finQueue.offer(packet);
+            internalQueue.wakeAll();
+            externalQueue.wakeAll();
+        }
+        else if (packet.getFlag() != Flag.NONE) {
+            Log.writeToLog("Received an internal packet", "AbstractConnection");
+            if (!internalQueue.offer(packet)) {
+                Log.writeToLog(packet, "Internal queue full, dropping packet", "AbstractConnection");
+            }
+        }
+        else {
+            Log.writeToLog("Received an external packet", "AbstractConnection");
+            if (!externalQueue.offer(packet)) {
+                Log.writeToLog(packet, "External queue full, dropping packet", "AbstractConnection");
+            }
+        }
+    }
+
+    /**
+     * Tell the threads receiving from this connection that the other side
+     * will send no more data, for subclasses that handle FINs themselves
+     * instead of leaving them to {@link #receivePacket(boolean)}. Data
+     * packets in the external queue are still returned, and after them the
+     * receiving methods throw an EOFException.
+     */
+    protected void endOfStream() {
+        endOfStream = true;
+        internalQueue.wakeAll();
+        externalQueue.wakeAll();
+    }
+
+    /**
+     * Receives a packet from the connectionless layer. Packets are received
+     * by the receive dispatcher of the local port; this method waits until
+     * the queue of the requested kind has one.<br>
      * <br>
      * It calls {@link #isValid(KtnDatagram)} on FIN-packets in ESTABLISHED
      * state, before an EOFException is thrown.
@@ -327,198 +595,62 @@ public abstract class AbstractConnection implements Connection {
      *            true if you want to receive non-external packet, i.e. not a
      *            packet with data intended for the application. False
      *            otherwise.
-     * @return A received datagram
+     * @return A received datagram, or null if an internal packet was
+     *         requested and none arrived within the receive timeout.
      * @throws IOException
      *             If the underlying connectionless layer throws an IOException.
      * @throws EOFException
      *             If a packet with a FIN-flag was received in ESTABLISHED
-     *             state.
+     *             state, or after {@link #endOfStream()}.
      */
     protected KtnDatagram receivePacket(boolean internal) throws IOException, EOFException {
-        /*
-         * Acquire monitor for this instance, and see if another thread runs
-         * receive on our port. If so, see if that thread gets the packet that
-         * was meant for us.
-         */
-        synchronized (this) {
-            long before, after;
-    
-            before = System.currentTimeMillis();
-            while (isReceiving) {
-                try {
-                    if (internal)
-                        wait(TIMEOUT); // wait with timeout
-                    else wait(); // wait (potentially) forever
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-                after = System.currentTimeMillis();
-    
-                // If a packet for us has arrived, return it.
-                if (internal) {
-                    // Case 1: Internal (protocol) caller, check internalQueue
-                    if (!internalQueue.isEmpty()) {
-                        return internalQueue.remove(0);
-                    }
-                    // If no packet arrived, see if timeout has expired.
-                    else if ((after - before) > TIMEOUT) {
-                        return null;
-                    }
-                }
-                else {
-                    // Case 2: Non-internal (application) caller, check
-                    // externalQueue
-                    if (!externalQueue.isEmpty()) {
-                        return externalQueue.remove(0);
-                    }
-                    // else try loop again unless connection is free
-                }
+        startReceiving();
+        PacketQueue queue = internal ? internalQueue : externalQueue;
+        // Waiting for internal packets times out, waiting for external
+        // packets can take forever.
+        long deadline = internal
+                ? System.nanoTime() + rttEstimator.getReceiveTimeout() * 1000000L : 0;
+
+        while (true) {
+            long epoch = queue.epoch();
+            KtnDatagram packet = internal ? null : queue.poll();
+            if (packet != null) {
+                return packet;
             }
-    
-            // When we get here, this thread has not got its packet, and it's
-            // allowed to enter the listening part of doReceive().
-            isReceiving = true;
-        }
-    
-        Log.writeToLog("Waiting for incoming packet in doReceive()", "AbstractConnection");
-    
-        KtnDatagram incomingPacket;
-    
-        /*
-         * Waiting for internal and external packets should be handled
-         * differently. Waiting for internal packets should time out.
-         */
-        if (internal) {
-            // We are waiting for an internal packet, ie. a packet with a flag
-            long start = System.currentTimeMillis();
-            while (System.currentTimeMillis() - start < TIMEOUT) {
-                ClSocketReceiver receiver = new ClSocketReceiver(myPort);
-                receiver.start();
-                // Wait at most what is left of the TIMEOUT period for thread to
-                // die, but never less than 1 millisecond
-                try {
-                    long timeout  = TIMEOUT - (System.currentTimeMillis() - start);
-                    receiver.join(Math.max(timeout, 1));
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-    
-                receiver.stopReceive();
-                incomingPacket = receiver.getPacket();
-                if (incomingPacket == null) {
-                    // No packet was received
-                    synchronized (this) {
-                        isReceiving = false;
-                        notifyAll();
-                        return null;
-                    }
-                }
-                else {
-                    // We have a packet
-                    if (incomingPacket.getFlag() != Flag.NONE) {
-                        // Packet is internal
-                        Log.writeToLog("Received an internal packet in doReceive",
-                                "AbstractConnection");
-    
-                        if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                            // A FIN-packet has arrived in established state,
-                            // stop receiving and throw and exception
-                            disconnectRequest = incomingPacket;
-                            synchronized (this) {
-                                isReceiving = false;
-                                notifyAll();
-                                throw new EOFException("FIN packet received.");
-                            }
-                        }
-                        else {
-                            // Not a FIN packet in established state, return it
-                            // normally.
-                            synchronized (this) {
-                                isReceiving = false;
-                                notifyAll();
-                                return incomingPacket;
-                            }
-                        }
-                    }
-                    else {
-                        // Packet was meant for the application, continue
-                        // listening until timeout.
-                        Log.writeToLog("Received an external packet in doReceive",
-                                "AbstractConnection");
-    
-                        synchronized (this) {
-                            synchronized (this) {
-                                externalQueue.add(incomingPacket);
-                                notifyAll();
-                            }
-                        }
-                    }
-                }
+            if (pollEstablishedFin() != null || endOfStream) {
+                throw new EOFException("FIN packet received.");
             }
-            // We have now waited at least TIMEOUT milliseconds, still no
-            // packet.
-            synchronized (this) {
-                isReceiving = false;
-                notifyAll();
-                return null;
+            if (internal) {
+                packet = finQueue.poll();
+                if (packet == null) packet = queue.poll();
+                if (packet != null) return packet;
+                if (System.nanoTime() - deadline >= 0) return null;
             }
+            queue.await(epoch, deadline);
         }
-        else {
-            // We are waiting for a packet to an external application, ie. a
-            // packet with no flags. Can possibly wait forever.
-            incomingPacket = new ClSocket().receive(myPort);
-            if (incomingPacket == null) {
-                // We should get a packet, try again.
-                synchronized (this) {
-                    isReceiving = false;
-                    notifyAll();
-                }
-                return receivePacket(internal);
-            }
-            else {
-                // We have a packet
-                if (incomingPacket.getFlag() != Flag.NONE) {
-                    // Packet is internal
-                    Log.writeToLog("Received an internal packet in doReceive", "AbstractConnection");
-    
-                    if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                        // A FIN-packet has arrived in established state,
-                        // stop receiving and throw and exception
-                        disconnectRequest = incomingPacket;
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            throw new EOFException("FIN packet received.");
-                        }
-                    }
-                    else {
-                        // Not a FIN packet, continue listening
-                        synchronized (this) {
-                            internalQueue.add(incomingPacket);
-                            isReceiving = false;
-                            notifyAll();
-                        }
-                        return receivePacket(internal);
-                    }
-                }
-                else {
-                    // Packet was meant for the application, yei!
-                    Log.writeToLog("Received an external packet in doReceive", "AbstractConnection");
-    
-                    synchronized (this) {
-                        isReceiving = false;
-                        notifyAll();
-                        return incomingPacket;
-                    }
-                }
-            }
+    }
+
+    /**
+     * Takes a data packet for the application without waiting, for
+     * connections that are not read through {@link #receivePacket(boolean)}.
+     * 
+     * @return A data packet, or null if there is none.
+     * @throws EOFException
+     *             If there is none and a valid FIN was received in
+     *             ESTABLISHED state, or after {@link #endOfStream()}.
+     */
+    protected KtnDatagram pollPacket() throws EOFException {
+        KtnDatagram packet = externalQueue.poll();
+        if (packet == null && (pollEstablishedFin() != null || endOfStream)) {
+            throw new EOFException("FIN packet received.");
         }
+        return packet;
     }
 
     /**
      * Waits for an ACK or SYN_ACK. Blocks until the ack is recieved. Returns
-     * null if no ack recieved after the specified time, see
-     * {@link AbstractConnection#TIMEOUT}. <br>
+     * null if no ack recieved after the receive timeout of the connection,
+     * see {@link RttEstimator#getReceiveTimeout()}. <br>
      * <br>
      * If a FIN-packet is received and the state is not ESTABLISHED, this will
      * also be returned.<br>
@@ -535,127 +667,70 @@ public abstract class AbstractConnection implements Connection {
      *             If a FIN-packet is received in ESTABLISHED state.
      */
     protected KtnDatagram receiveAck() throws IOException, EOFException {
-        /*
-         * Acquire monitor for this instance, and see if another thread runs
-         * receive on our port. If so, see if that thread gets the packet that
-         * was meant for us.
-         */
-        synchronized (this) {
-            long before, after;
+        return receiveAck(rttEstimator.getReceiveTimeout());
+    }
 
-            before = System.currentTimeMillis();
-            while (isReceiving) {
-                try {
-                    wait(TIMEOUT); // wait with timeout
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-                after = System.currentTimeMillis();
-
-                // If an ack for us has arrived, return it.
-                // check internalQueue
-                if (!internalQueue.isEmpty()) {
-                    KtnDatagram packet = internalQueue.get(0);
-                    if (packet.getFlag() == Flag.ACK || packet.getFlag() == Flag.SYN_ACK) {
-                        return internalQueue.remove(0);
-                    }
-                }
-                // If no packet arrived, see if timeout has expired.
-                else if ((after - before) > TIMEOUT) {
-                    return null;
+    /**
+     * Waits for an ACK or SYN_ACK for at most the given number of
+     * milliseconds. Behaves as {@link #receiveAck()} in all other respects.
+     * Other internal packets that are waiting, e.g. a repeated SYN, are
+     * dropped.
+     * 
+     * @param timeout
+     *            Maximum time to wait, in milliseconds.
+     * @return The ACK or SYN_ACK KtnDatagram recieved (can be null), may also
+     *         be a FIN if not in established state.
+     * @throws IOException
+     *             If caused by the underlying connectionless layer.
+     * @throws EOFException
+     *             If a FIN-packet is received in ESTABLISHED state.
+     * @see #receiveAck()
+     */
+    protected KtnDatagram receiveAck(int timeout) throws IOException, EOFException {
+        startReceiving();
+        long deadline = System.nanoTime() + timeout * 1000000L;
+
+        while (true) {
+            long epoch = internalQueue.epoch();
+            // Acks that arrived before a FIN are handled first.
+            KtnDatagram packet;
+            while ((packet = internalQueue.poll()) != null) {
+                if (packet.getFlag() == Flag.ACK || packet.getFlag() == Flag.SYN_ACK) {
+                    return packet;
                 }
+                Log.writeToLog(packet, "Dropping packet while waiting for ack", "AbstractConnection");
             }
-
-            // When we get here, this thread has not got its packet, and it's
-            // allowed to enter the listening part of doReceive().
-            isReceiving = true;
-        }
-
-        Log.writeToLog("Waiting for incoming packet in receiveAck()", "AbstractConnection");
-
-        KtnDatagram incomingPacket;
-
-        // We are waiting for an ack or syn_ack packet
-        long start = System.currentTimeMillis();
-        while (System.currentTimeMillis() - start < TIMEOUT) {
-            ClSocketReceiver receiver = new ClSocketReceiver(myPort);
-            receiver.start();
-            // Wait at most what is left of the TIMEOUT period for thread to
-            // die, but never less than 1 millisecond
-            try {
-                receiver.join(Math.max(TIMEOUT - (System.currentTimeMillis() - start), 1));
+            if (pollEstablishedFin() != null) {
+                throw new EOFException("FIN packet received.");
             }
-            catch (InterruptedException e) { /* do nothing */
+            if (state != State.ESTABLISHED && (packet = finQueue.poll()) != null) {
+                return packet;
             }
 
-            receiver.stopReceive();
-            incomingPacket = receiver.getPacket();
-            if (incomingPacket == null) {
-                // No packet was received
-                synchronized (this) {
-                    isReceiving = false;
-                    notifyAll();
-                    return null;
-                }
-            }
-            else {
-                // We have a packet
-                if (incomingPacket.getFlag() != Flag.NONE) {
-                    // Packet is internal
-                    Log.writeToLog("Received an internal packet in receiveAck",
-                            "AbstractConnection");
-
-                    if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                        // A FIN-packet has arrived in established state,
-                        // stop receiving and throw and exception
-                        disconnectRequest = incomingPacket;
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            throw new EOFException("FIN packet received.");
-                        }
-                    }
-                    else if (incomingPacket.getFlag() == Flag.ACK
-                            || incomingPacket.getFlag() == Flag.SYN_ACK
-                            || incomingPacket.getFlag() == Flag.FIN) {
-                        // Not a FIN packet in established state, return if it
-                        // is SYN, SYN_ACK or FIN
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            return incomingPacket;
-                        }
-                    }
-                    else {
-                        // Not a packet we want to return, continue looping.
-                        synchronized (this) {
-                            internalQueue.add(incomingPacket);
-                            notifyAll();
-                        }
-                    }
-                }
-                else {
-                    // Packet was meant for the application, continue
-                    // listening until timeout.
-                    Log.writeToLog("Received an external packet in receiveAck",
-                            "AbstractConnection");
-
-                    synchronized (this) {
-                        synchronized (this) {
-                            externalQueue.add(incomingPacket);
-                            notifyAll();
-                        }
-                    }
-                }
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
             }
+            internalQueue.await(epoch, deadline);
         }
-        // We have now waited at least TIMEOUT milliseconds, still no
-        // packet.
-        synchronized (this) {
-            isReceiving = false;
-            notifyAll();
-            return null;
+    }
+
+    /**
+     * In ESTABLISHED state, takes the first valid FIN and stores it in
+     * {@link #disconnectRequest}. Invalid FINs, e.g. data packets with a
+     * damaged flag, are dropped.
+     * 
+     * @return The FIN, or null if there is none or the connection is not in
+     *         ESTABLISHED state.
+     */
+    private KtnDatagram pollEstablishedFin() {
+        KtnDatagram fin;
+        while (state == State.ESTABLISHED && (fin = finQueue.poll()) != null) {
+            if (isValid(fin)) {
+                disconnectRequest = fin;
+                return fin;
+            }
         }
+        return null;
     }
 
     /**
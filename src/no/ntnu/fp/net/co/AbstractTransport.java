@@ -0,0 +1,248 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.FailureController;
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * A partial implementation of {@link Transport} for the transports in this
+ * package. The fields of a KtnDatagram are written in a compact binary form,
+ * see {@link #encode(KtnDatagram)}, instead of serializing the whole object;
+ * the payload is copied as the bytes the datagram already holds. Subclasses
+ * only carry the encoded bytes, see
+ * {@link #transmit(ByteBuffer, InetSocketAddress)}.<br>
+ * <br>
+ * Errors are injected like the FailureController of A2 does for ClSocket,
+ * with the probabilities it read from settings.xml: a datagram other than an
+ * ACK may be lost, duplicated, delayed by up to
+ * {@link FailureController#getMaxDelay()} milliseconds, or have a char of
+ * its payload changed or a byte of its header flipped. The checksum
+ * travels unchanged, so a corrupted datagram fails
+ * {@link AbstractConnection#isValid(KtnDatagram)}.
+ */
+abstract class AbstractTransport implements Transport {
+
+    /** First byte of every encoded datagram. */
+    private static final byte VERSION = 1;
+    /** Offset of the first and of the byte after the last header field. */
+    private static final int HEADER_START = 1, HEADER_END = 26;
+
+    private static final Flag[] FLAGS = Flag.values();
+    private static final Random random = new Random();
+
+    static {
+        // Load the error settings, as ClSocket does.
+        if (Settings.INSTANCE == null) new Settings();
+    }
+
+    /**
+     * Send an encoded datagram.
+     *
+     * @param encoded
+     *            The datagram, see {@link #encode(KtnDatagram)}.
+     * @param target
+     *            The address and port the datagram is for.
+     * @throws IOException
+     *             If the datagram could not be sent.
+     */
+    protected abstract void transmit(ByteBuffer encoded, InetSocketAddress target) throws IOException;
+
+    public void send(final KtnDatagram packet) throws ClException, IOException {
+        final InetSocketAddress target;
+        try {
+            target = new InetSocketAddress(InetAddress.getByName(packet.getDest_addr()), packet.getDest_port());
+        }
+        catch (UnknownHostException e) {
+            throw new ClException("Unknown destination address: " + packet.getDest_addr());
+        }
+        ByteBuffer encoded = encode(packet);
+        if (!FailureController.isError() || packet.getFlag() == Flag.ACK
+                || (FailureController.isOnlyDataError() && packet.getFlag() != Flag.NONE)) {
+            transmit(encoded, target);
+            return;
+        }
+
+        double chance = random.nextDouble();
+        switch (random.nextInt(5)) {
+        case 0:
+            if (chance < FailureController.getLoss_prob()) {
+                Log.writeToLog(packet, "Datagram was lost", "NETWORK");
+                return;
+            }
+            break;
+        case 1:
+            if (chance < FailureController.getGhost_prob()) {
+                Log.writeToLog(packet, "Datagram was duplicated", "NETWORK");
+                transmit(encoded.duplicate(), target);
+            }
+            break;
+        case 2:
+            if (chance < FailureController.getPayload_error_prob() && hasContent(packet)) {
+                Log.writeToLog(packet, "Error in payload", "NETWORK");
+                encoded = encode(withCorruptPayload(packet));
+            }
+            break;
+        case 3:
+            if (chance < FailureController.getHeader_error_prob()) {
+                Log.writeToLog(packet, "Error in header", "NETWORK");
+                flipByte(encoded, HEADER_START, HEADER_END);
+            }
+            break;
+        default:
+            if (chance < FailureController.getDelay_prob()) {
+                Log.writeToLog(packet, "Datagram was delayed", "NETWORK");
+                final ByteBuffer delayed = encoded;
+                TimerWheel.getShared().schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            transmit(delayed, target);
+                            Log.writeToLog(packet, " was sent after a delay", "NETWORK");
+                        }
+                        catch (IOException e) {
+                            Log.writeToLog(packet, "Delayed send failed: " + e.getMessage(), "NETWORK");
+                        }
+                    }
+                }, 1 + random.nextInt(Math.max(1, FailureController.getMaxDelay())));
+                return;
+            }
+        }
+        transmit(encoded, target);
+    }
+
+    /**
+     * Encode a datagram as: a version byte, the flag as a byte, the source
+     * and destination port, sequence number and ack as ints, the checksum as
+     * a long, the source and destination address as a short length and
+     * UTF-8 bytes, and the payload as an int length and bytes. A length of
+     * -1 stands for null.
+     */
+    static ByteBuffer encode(KtnDatagram packet) {
+        byte[] src = bytes(packet.getSrc_addr());
+        byte[] dest = bytes(packet.getDest_addr());
+        byte[] payload = packet.getPayloadAsBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_END + 2 + length(src) + 2 + length(dest) + 4
+                + length(payload));
+        buffer.put(VERSION);
+        buffer.put(packet.getFlag() == null ? -1 : (byte)packet.getFlag().ordinal());
+        buffer.putInt(packet.getSrc_port());
+        buffer.putInt(packet.getDest_port());
+        buffer.putInt(packet.getSeq_nr());
+        buffer.putInt(packet.getAck());
+        buffer.putLong(packet.getChecksum());
+        buffer.putShort((short)(src == null ? -1 : src.length));
+        if (src != null) buffer.put(src);
+        buffer.putShort((short)(dest == null ? -1 : dest.length));
+        if (dest != null) buffer.put(dest);
+        buffer.putInt(payload == null ? -1 : payload.length);
+        if (payload != null) buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a datagram written by {@link #encode(KtnDatagram)}.
+     *
+     * @return The datagram, or null if the bytes are not a datagram.
+     */
+    static KtnDatagram decode(ByteBuffer buffer) {
+        try {
+            if (buffer.get() != VERSION) throw new IllegalArgumentException("unknown version");
+            KtnDatagram packet = new KtnDatagram();
+            byte flag = buffer.get();
+            packet.setFlag(flag == -1 ? null : FLAGS[flag]);
+            packet.setSrc_port(buffer.getInt());
+            packet.setDest_port(buffer.getInt());
+            packet.setSeq_nr(buffer.getInt());
+            packet.setAck(buffer.getInt());
+            packet.setChecksum(buffer.getLong());
+            packet.setSrc_addr(string(buffer, buffer.getShort()));
+            packet.setDest_addr(string(buffer, buffer.getShort()));
+            int length = buffer.getInt();
+            if (length >= 0) {
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                packet.setPayloadAsBytes(payload);
+            }
+            return packet;
+        }
+        catch (BufferUnderflowException e) {
+            Log.writeToLog("Discarded a truncated datagram", "AbstractTransport");
+        }
+        catch (RuntimeException e) {
+            Log.writeToLog("Discarded a malformed datagram: " + e, "AbstractTransport");
+        }
+        return null;
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer, int length) {
+        if (length < 0) return null;
+        if (length > buffer.remaining()) throw new BufferUnderflowException();
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    /** @return true if a datagram has a binary payload or a String that is not empty. */
+    private static boolean hasContent(KtnDatagram packet) {
+        if (ConnectionImpl.isBinary(packet)) {
+            return true;
+        }
+        Object payload = packet.getPayload();
+        return payload instanceof String && ((String)payload).length() > 0;
+    }
+
+    /**
+     * @return A copy of a datagram with a binary or String payload, with one
+     *         byte or char of the payload changed but the checksum of the
+     *         original.
+     */
+    private static KtnDatagram withCorruptPayload(KtnDatagram packet) {
+        KtnDatagram copy = new KtnDatagram();
+        copy.setFlag(packet.getFlag());
+        copy.setSrc_addr(packet.getSrc_addr());
+        copy.setSrc_port(packet.getSrc_port());
+        copy.setDest_addr(packet.getDest_addr());
+        copy.setDest_port(packet.getDest_port());
+        copy.setSeq_nr(packet.getSeq_nr());
+        copy.setAck(packet.getAck());
+        if (ConnectionImpl.isBinary(packet)) {
+            byte[] bytes = packet.getPayloadAsBytes().clone();
+            bytes[ConnectionImpl.BINARY_HEADER + random.nextInt(bytes.length - ConnectionImpl.BINARY_HEADER)] ^= 1;
+            copy.setPayloadAsBytes(bytes);
+        }
+        else {
+            char[] chars = ((String)packet.getPayload()).toCharArray();
+            chars[random.nextInt(chars.length)] ^= 1;
+            copy.setPayload(new String(chars));
+        }
+        copy.setChecksum(packet.getChecksum());
+        return copy;
+    }
+
+    /** Flip the bits of a random byte in [from, to) of the buffer. */
+    private static void flipByte(ByteBuffer buffer, int from, int to) {
+        int index = from + random.nextInt(to - from);
+        buffer.put(index, (byte)~buffer.get(index));
+    }
+}
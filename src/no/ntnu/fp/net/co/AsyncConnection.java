@@ -0,0 +1,69 @@
+package no.ntnu.fp.net.co;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Connection whose operations can also be started without waiting for
+ * them. Each method returns at once with a future that the protocol
+ * completes when the operation is done, so one thread can have many
+ * operations outstanding on many connections. A failure completes the
+ * future exceptionally with the IOException the blocking method would have
+ * thrown.<br>
+ * <br>
+ * Futures are completed on a worker thread of the {@link TimerWheel}, never
+ * while the connection holds a lock, so dependent actions may call the
+ * connection again. They should not block, as the workers also send
+ * packets.
+ *
+ * @see Connection
+ */
+public interface AsyncConnection extends Connection {
+
+    /**
+     * Start connecting to a remote instance.
+     *
+     * @param remoteAddress
+     *            address of remote instance
+     * @param remotePort
+     *            port remote instance is listening to
+     * @return a future completed when the connection is established, or
+     *         completed with a java.net.SocketTimeoutException if the other
+     *         side does not answer
+     */
+    public CompletableFuture<Void> connectAsync(InetAddress remoteAddress, int remotePort);
+
+    /**
+     * Send a message to the remote instance without waiting for room in the
+     * send window. Messages are sent in the order of the calls, also when
+     * mixed with {@link #send(String)}.
+     *
+     * @param msg
+     *            the message to be sent
+     * @return a future completed when the remote instance has acknowledged
+     *         the message, or completed with a java.net.ConnectException if
+     *         the connection is closed first
+     */
+    public CompletableFuture<Void> sendAsync(String msg);
+
+    /**
+     * Ask for the next message from the remote instance. Calls are answered
+     * in order. Do not mix with {@link #receive()} on the same connection.
+     *
+     * @return a future completed with the message, or completed with a
+     *         java.io.EOFException when the remote instance has closed the
+     *         connection and every message has been received
+     */
+    public CompletableFuture<String> receiveAsync();
+
+    /**
+     * Start closing the connection. Messages sent before are delivered
+     * first; nothing can be sent after this call.
+     *
+     * @return a future completed when the connection is closed, or
+     *         completed with a java.net.ConnectException when messages sent
+     *         before were given up on without being acknowledged
+     */
+    public CompletableFuture<Void> closeAsync();
+
+}
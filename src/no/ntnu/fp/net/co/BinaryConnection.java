@@ -0,0 +1,47 @@
+package no.ntnu.fp.net.co;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Connection that can also move raw bytes, without converting them to and
+ * from Strings. A message sent with {@link #send(ByteBuffer)} must be
+ * received with {@link #receive(ByteBuffer)}, and a text message with
+ * {@link #receive()}: a receive of the other kind throws an IOException
+ * and leaves the message for the right one.
+ *
+ * @see Connection
+ */
+public interface BinaryConnection extends Connection {
+
+    /**
+     * Send the remaining bytes of a buffer to the remote instance as one
+     * message. The position of the buffer is advanced to its limit.
+     *
+     * @param src
+     *            the bytes to be sent
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(ByteBuffer src) throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Synchronous receive of a message from the remote instance into a
+     * buffer. Blocks until a message is received. The bytes are put at the
+     * position of the buffer, which is advanced past them.
+     *
+     * @param dst
+     *            the buffer to receive the message into
+     * @return the number of bytes in the message
+     * @throws java.nio.BufferOverflowException
+     *             if the message does not fit in the remaining space of the
+     *             buffer. The message is kept for the next call.
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when receiving
+     */
+    public int receive(ByteBuffer dst) throws java.net.ConnectException, java.io.IOException;
+
+}
@@ -0,0 +1,170 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.fp.net.admin.Log;
+
+/**
+ * Measures what it costs to send the same message to many connections. It
+ * opens a number of connections on the UDP transport and broadcasts
+ * messages on the server side of all of them, first with
+ * {@link AsyncConnection#sendAsync(String)}, which serializes and
+ * checksums the message for every connection, and then with
+ * {@link BroadcastConnection#sendAsync(SharedPayload)}, which does so once
+ * per message. For each round it prints the time until every message is
+ * acked, the CPU time of the process and the bytes allocated by all
+ * threads.<br>
+ * <br>
+ * Usage: BroadcastBenchmark [connections] [messages] [message length] [port]
+ */
+public class BroadcastBenchmark {
+
+    /** First local port tried by the client side. */
+    private static final int FIRST_CLIENT_PORT = 40000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int length = args.length > 2 ? Integer.parseInt(args[2]) : 400;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5557;
+
+        Log.setLogName("BroadcastBenchmark");
+        Transports.setType(Transports.UDP);
+
+        final AtomicInteger received = new AtomicInteger();
+        MessageListener counter = new MessageListener() {
+            public void messageReceived(Connection connection, String message) {
+                received.incrementAndGet();
+            }
+
+            public void connectionClosed(Connection connection) {
+            }
+        };
+        final List<ConnectionImpl> server = new ArrayList<ConnectionImpl>(connections);
+        final CountDownLatch accepted = new CountDownLatch(connections);
+        final int listenPort = port;
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                serve(listenPort, server, accepted);
+            }
+        }, "BroadcastBenchmark-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        List<ConnectionImpl> clients = connect(InetAddress.getByName("localhost"), port, connections, counter);
+        accepted.await();
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() < length) {
+            body.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        String text = body.substring(0, length);
+
+        //The first rounds warm up the JIT
+        broadcast(server, messages / 4, text, false, false, received);
+        broadcast(server, messages / 4, text, true, false, received);
+        broadcast(server, messages, text, false, true, received);
+        broadcast(server, messages, text, true, true, received);
+
+        for (ConnectionImpl connection : clients) {
+            connection.close();
+        }
+        System.exit(0);
+    }
+
+    /** Send messages to every connection and wait until all are acked and received. */
+    private static void broadcast(List<ConnectionImpl> server, int messages, String text, boolean shared,
+            boolean print, AtomicInteger received) throws Exception {
+        int expected = received.get() + messages * server.size();
+        long cpu = cpuTime();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> acked = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < messages; i++) {
+            String message = i + ": " + text;
+            SharedPayload payload = shared ? new SharedPayload(message) : null;
+            for (ConnectionImpl connection : server) {
+                acked.add(shared ? connection.sendAsync(payload) : connection.sendAsync(message));
+            }
+        }
+        CompletableFuture.allOf(acked.toArray(new CompletableFuture<?>[acked.size()])).get();
+        while (received.get() < expected) {
+            Thread.sleep(1);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        if (print) {
+            System.out.println((shared ? "shared payload: " : "String payload: ") + messages + " messages to "
+                    + server.size() + " connections in " + millis + " ms, "
+                    + (cpuTime() - cpu) / 1000000 + " ms CPU, "
+                    + (allocatedBytes() - allocated) / (1024 * 1024) + " MB allocated");
+        }
+    }
+
+    /** Accept connections. */
+    private static void serve(int port, List<ConnectionImpl> server, CountDownLatch accepted) {
+        ConnectionImpl listening = new ConnectionImpl(port);
+        listening.setBacklog((int)accepted.getCount());
+        while (accepted.getCount() > 0) {
+            try {
+                ConnectionImpl connection = (ConnectionImpl)listening.accept();
+                connection.setSendWindowSize(64);
+                synchronized (server) {
+                    server.add(connection);
+                }
+                accepted.countDown();
+            }
+            catch (IOException e) {
+                // The handshake failed, the client tries again.
+            }
+        }
+    }
+
+    /** Open connections. */
+    private static List<ConnectionImpl> connect(InetAddress host, int port, int connections,
+            MessageListener listener) {
+        List<ConnectionImpl> open = new ArrayList<ConnectionImpl>(connections);
+        int localPort = FIRST_CLIENT_PORT;
+        while (open.size() < connections) {
+            ConnectionImpl connection = new ConnectionImpl(localPort++);
+            try {
+                connection.connect(host, port);
+                connection.setReceiveWindowSize(64);
+                connection.setMessageListener(listener);
+                open.add(connection);
+            }
+            catch (IOException e) {
+                // The local port is taken or the handshake failed: next port.
+            }
+        }
+        return open;
+    }
+
+    /** @return The CPU time of the process in nanoseconds, or 0 if unknown. */
+    private static long cpuTime() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    /** @return The bytes allocated by the live threads, or 0 if unknown. */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long[] ids = threads.getAllThreadIds();
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(ids)) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+}
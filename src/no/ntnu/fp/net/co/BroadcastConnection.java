@@ -0,0 +1,39 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Connection that can send a message serialized once for many
+ * connections, see {@link SharedPayload}. A server that sends the same
+ * message to all its clients builds one SharedPayload and passes it to the
+ * connection of every client, so the message is not serialized and
+ * checksummed again for each of them.
+ *
+ * @see Connection
+ */
+public interface BroadcastConnection extends Connection {
+
+    /**
+     * Send a shared message, as {@link #send(String)} sends a message.
+     *
+     * @param payload
+     *            the message to be sent
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(SharedPayload payload) throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Send a shared message without waiting for room in the send window.
+     *
+     * @param payload
+     *            the message to be sent
+     * @return a future completed when the remote instance has acknowledged
+     *         the message
+     * @see AsyncConnection#sendAsync(String)
+     */
+    public CompletableFuture<Void> sendAsync(SharedPayload payload);
+
+}
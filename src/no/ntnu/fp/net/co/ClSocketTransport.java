@@ -0,0 +1,29 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The {@link Transport} of A2: a {@link ClSocket}, which opens a TCP
+ * connection for every datagram. Errors are injected by the
+ * FailureController of A2.
+ */
+class ClSocketTransport implements Transport {
+
+    private final ClSocket socket = new ClSocket();
+
+    public void send(KtnDatagram packet) throws ClException, IOException {
+        socket.send(packet);
+    }
+
+    public KtnDatagram receive(int port) throws IOException {
+        return socket.receive(port);
+    }
+
+    public void cancelReceive() throws IOException {
+        socket.cancelReceive();
+    }
+}
@@ -0,0 +1,49 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Congestion control for the send window of a {@link ConnectionImpl}. The
+ * connection reports ACKs and losses, and never has more packets in flight
+ * than {@link #getWindow()} allows, nor more than its own send window.
+ * Windows are counted in packets, as every data packet carries one message.
+ *
+ * @see NewRenoCongestionControl
+ * @see ConnectionImpl#setCongestionControl(CongestionControl)
+ */
+public interface CongestionControl {
+
+    /**
+     * @return The congestion window: the number of packets that may be in
+     *         flight, at least 1.
+     */
+    int getWindow();
+
+    /**
+     * Called when an ACK removes packets from the send window.
+     *
+     * @param ackedPackets
+     *            Number of packets acknowledged by the ACK.
+     * @param cumulativeAck
+     *            Highest sequence number up to which every packet is acked.
+     */
+    void onAck(int ackedPackets, int cumulativeAck);
+
+    /**
+     * Called when a packet is resent after duplicate ACKs.
+     *
+     * @param inFlight
+     *            Number of packets in flight when the loss was detected.
+     * @param highestSent
+     *            Sequence number of the last packet sent.
+     */
+    void onFastRetransmit(int inFlight, int highestSent);
+
+    /**
+     * Called when the retransmission timer expires.
+     *
+     * @param inFlight
+     *            Number of packets in flight when the timer expired.
+     * @param highestSent
+     *            Sequence number of the last packet sent.
+     */
+    void onTimeout(int inFlight, int highestSent);
+}
@@ -3,41 +3,539 @@
  */
 package no.ntnu.fp.net.co;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
 
 
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+import no.ntnu.fp.net.cl.Util;
+import no.ntnu.fp.net.co.StateMachine.Event;
 
 /**
  * Implementation of the Connection-interface. <br>
  * <br>
  * This class implements the behaviour in the methods specified in the interface
  * {@link Connection} over the unreliable, connectionless network realised in
- * {@link ClSocket}. The base class, {@link AbstractConnection} implements some
+ * a {@link Transport}, see {@link Transports}. The base class, {@link AbstractConnection} implements some
  * of the functionality, leaving message passing and error handling to this
- * implementation.
+ * implementation. Raw bytes can be sent and received as well, see
+ * {@link BinaryConnection}.<br>
+ * <br>
+ * Opening and closing are driven by the {@link StateMachine} in
+ * {@link #PROTOCOL}: packets, timers and calls from the application are
+ * events that move the connection from state to state, on whatever thread
+ * they happen. Only the application methods that must return a result, like
+ * connect() and accept(), wait for the state they need; the methods of
+ * {@link AsyncConnection} return a future instead. Several streams of
+ * messages can share the connection, see {@link StreamConnection}, and a
+ * message serialized once can be sent on many connections, see
+ * {@link BroadcastConnection}.
  * 
  * @author Sebjrn Birkeland and Stein Jakob Nordb
  * @see no.ntnu.fp.net.co.Connection
  * @see no.ntnu.fp.net.cl.ClSocket
  */
-public class ConnectionImpl extends AbstractConnection {
-	//Keeps track of the used ports for each server port
-	private static Map<Integer, Boolean> usedPorts = Collections.synchronizedMap(new HashMap<Integer, Boolean>());
+public class ConnectionImpl extends AbstractConnection 
+		implements BinaryConnection, AsyncConnection, StreamConnection, BroadcastConnection {
+	/**
+	 * Default number of unacknowledged data packets allowed in flight. ClSocket
+	 * only delivers a datagram while the receiver is blocked in receive(), so
+	 * back-to-back packets are mostly lost; the default therefore keeps the
+	 * stop-and-wait behaviour. Use {@link #setSendWindowSize(int)} to open it.
+	 */
+	public static final int DEFAULT_SEND_WINDOW = 1;
+
+	/** Maximum number of unacknowledged data packets allowed in flight. */
+	private int sendWindowSize = DEFAULT_SEND_WINDOW;
+
+	/** Limits the send window further when the network is congested. */
+	private CongestionControl congestionControl = new NewRenoCongestionControl();
+
+	/**
+	 * Highest sequence number the other side has room for: the cumulative
+	 * ack plus the receive window of its latest ACK. Unknown, and therefore
+	 * unlimited, until the first ACK.
+	 */
+	private volatile int peerWindowEdge = Integer.MAX_VALUE;
+	/** Cumulative ack of the ACK that set {@link #peerWindowEdge}. */
+	private int peerWindowAck = -1;
+	/** Number of packets resent to probe a closed receive window. */
+	private volatile int windowProbes;
+
+	/**
+	 * Guards the send window. This is not the monitor of the connection, so
+	 * that a thread receiving data can send its ACKs while a sending thread
+	 * waits for ACKs of its own.
+	 */
+	private final Object sendLock = new Object();
+
+	/**
+	 * Data packets that are sent but not yet acknowledged, oldest first. On
+	 * timeout every packet still in the buffer is sent again.
+	 */
+	private LinkedList<Outstanding> retransmitBuffer = new LinkedList<Outstanding>();
+
+	/**
+	 * Streams with payloads waiting for room in the send window. They take
+	 * turns, one packet each. Guarded by the send lock.
+	 */
+	private final LinkedList<Stream> sendingStreams = new LinkedList<Stream>();
+
+	/** Resends the window when the oldest packet has waited too long. */
+	private TimerWheel.Timeout retransmitTimer;
+	/** Incremented whenever the retransmission timer is started over. */
+	private int retransmitGeneration;
+	/** Time when an ACK last released a packet from the send window. */
+	private long lastProgress;
+
+	/**
+	 * Number of duplicate cumulative ACKs that make the oldest packet count
+	 * as lost, so that it is resent without waiting for the timer.
+	 */
+	public static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+	/** Cumulative ack of the last ACK that moved the window, or -1. */
+	private int lastCumulativeAck = -1;
+	/** ACKs in a row that repeated {@link #lastCumulativeAck}. */
+	private int duplicateAcks;
+	/**
+	 * Last packet sent when a loss was found, by duplicate ACKs or the
+	 * timer, or -1 when no loss is being recovered from. The packets up to it
+	 * that an ACK leaves unacked are lost as well.
+	 */
+	private int recoveryPoint = -1;
+	/** Last packet resent while recovering, so that none is resent twice. */
+	private int recoveryResent;
+	/** Number of packets resent after duplicate ACKs. */
+	private volatile int fastRetransmits;
+	/** Number of times the retransmission timer expired. */
+	private volatile int timeoutRetransmits;
+
+	/** Time in milliseconds spent in TIME_WAIT before the connection is closed. */
+	private static final int TIME_WAIT_DELAY = 1000;
+
+	/**
+	 * Longest time in milliseconds the JVM waits at exit for connections
+	 * that are still closing.
+	 */
+	public static final int LINGER_TIMEOUT = 30000;
+	/** Closes that have begun and are not done. */
+	private static Set<CompletableFuture<Void>> lingering;
+
+	/** Number of times a SYN, SYN_ACK or FIN is resent before giving up. */
+	public static final int HANDSHAKE_RETRIES = 4;
+
+	/** What a transition of {@link #PROTOCOL} does, see {@link #perform(Action, KtnDatagram)}. */
+	private enum Action {
+		SEND_SYN, COMPLETE_CONNECT, START_LISTENING, SPAWN, SEND_SYN_ACK, COMPLETE_ACCEPT, HANDLE_ACK,
+		REACK, BEGIN_CLOSE, SEND_FIN, AWAIT_FIN, PEER_CLOSED, ENTER_TIME_WAIT, RESEND, ABORT, RELEASE
+	}
+
+	/**
+	 * The protocol. It follows TCP, except that an accepted connection gets a
+	 * port of its own, which the SYN_ACK comes from, and that a connection
+	 * sends its FIN only once all its data has been acked. As in TCP, a
+	 * connection that the other side has closed can still send, until it is
+	 * closed itself.
+	 */
+	private static final StateMachine<Action> PROTOCOL = new StateMachine<Action>();
+	static {
+		//Opening, active side
+		PROTOCOL.add(State.CLOSED, Event.CONNECT, State.SYN_SENT, Action.SEND_SYN);
+		PROTOCOL.add(State.SYN_SENT, Event.SYN_ACK, State.ESTABLISHED, Action.COMPLETE_CONNECT);
+		PROTOCOL.add(State.SYN_SENT, Event.TIMEOUT, State.SYN_SENT, Action.RESEND);
+		PROTOCOL.add(State.SYN_SENT, Event.GIVE_UP, State.CLOSED, Action.ABORT);
+		PROTOCOL.add(State.SYN_SENT, Event.CLOSE, State.CLOSED, Action.ABORT);
+		//Opening, passive side: every SYN spawns a connection in SYN_RCVD
+		PROTOCOL.add(State.CLOSED, Event.LISTEN, State.LISTEN, Action.START_LISTENING);
+		PROTOCOL.add(State.LISTEN, Event.SYN, State.LISTEN, Action.SPAWN);
+		PROTOCOL.add(State.LISTEN, Event.CLOSE, State.CLOSED, Action.RELEASE);
+		PROTOCOL.add(State.CLOSED, Event.SYN, State.SYN_RCVD, Action.SEND_SYN_ACK);
+		PROTOCOL.add(State.SYN_RCVD, Event.SYN, State.SYN_RCVD, Action.RESEND);
+		PROTOCOL.add(State.SYN_RCVD, Event.ACK, State.ESTABLISHED, Action.COMPLETE_ACCEPT);
+		PROTOCOL.add(State.SYN_RCVD, Event.TIMEOUT, State.SYN_RCVD, Action.RESEND);
+		PROTOCOL.add(State.SYN_RCVD, Event.GIVE_UP, State.CLOSED, Action.ABORT);
+		//Data transfer
+		PROTOCOL.add(State.ESTABLISHED, Event.ACK, State.ESTABLISHED, Action.HANDLE_ACK);
+		PROTOCOL.add(State.ESTABLISHED, Event.SYN_ACK, State.ESTABLISHED, Action.REACK);
+		//Closing, active side
+		PROTOCOL.add(State.ESTABLISHED, Event.CLOSE, State.ESTABLISHED, Action.BEGIN_CLOSE);
+		PROTOCOL.add(State.ESTABLISHED, Event.DRAINED, State.FIN_WAIT_1, Action.SEND_FIN);
+		PROTOCOL.add(State.FIN_WAIT_1, Event.FIN_ACK, State.FIN_WAIT_2, Action.AWAIT_FIN);
+		PROTOCOL.add(State.FIN_WAIT_1, Event.FIN, State.TIME_WAIT, Action.ENTER_TIME_WAIT);
+		PROTOCOL.add(State.FIN_WAIT_1, Event.TIMEOUT, State.FIN_WAIT_1, Action.RESEND);
+		PROTOCOL.add(State.FIN_WAIT_1, Event.GIVE_UP, State.CLOSED, Action.RELEASE);
+		PROTOCOL.add(State.FIN_WAIT_2, Event.FIN, State.TIME_WAIT, Action.ENTER_TIME_WAIT);
+		PROTOCOL.add(State.FIN_WAIT_2, Event.TIMEOUT, State.CLOSED, Action.RELEASE);
+		PROTOCOL.add(State.TIME_WAIT, Event.FIN, State.TIME_WAIT, Action.REACK);
+		PROTOCOL.add(State.TIME_WAIT, Event.TIMEOUT, State.CLOSED, Action.RELEASE);
+		//Closing, passive side
+		PROTOCOL.add(State.ESTABLISHED, Event.FIN, State.CLOSE_WAIT, Action.PEER_CLOSED);
+		PROTOCOL.add(State.CLOSE_WAIT, Event.FIN, State.CLOSE_WAIT, Action.REACK);
+		PROTOCOL.add(State.CLOSE_WAIT, Event.ACK, State.CLOSE_WAIT, Action.HANDLE_ACK);
+		PROTOCOL.add(State.CLOSE_WAIT, Event.CLOSE, State.CLOSE_WAIT, Action.BEGIN_CLOSE);
+		PROTOCOL.add(State.CLOSE_WAIT, Event.DRAINED, State.LAST_ACK, Action.SEND_FIN);
+		PROTOCOL.add(State.LAST_ACK, Event.FIN, State.LAST_ACK, Action.REACK);
+		PROTOCOL.add(State.LAST_ACK, Event.FIN_ACK, State.CLOSED, Action.RELEASE);
+		PROTOCOL.add(State.LAST_ACK, Event.TIMEOUT, State.LAST_ACK, Action.RESEND);
+		PROTOCOL.add(State.LAST_ACK, Event.GIVE_UP, State.CLOSED, Action.RELEASE);
+	}
+
+	/**
+	 * Guards {@link AbstractConnection#state} and the fields of the state
+	 * machine. Threads waiting for a new state wait on it.
+	 */
+	private final Object stateLock = new Object();
+	/** The SYN, SYN_ACK or FIN that is resent until it is answered. */
+	private KtnDatagram handshakePacket;
+	/** Time when {@link #handshakePacket} was last sent. */
+	private long handshakeSentAt;
+	/** Number of times {@link #handshakePacket} has been resent. */
+	private int protocolRetries;
+	/** Fires the timer event of the current state. */
+	private TimerWheel.Timeout protocolTimer;
+	/** Incremented whenever {@link #protocolTimer} is replaced or cancelled. */
+	private int timerGeneration;
+	/**
+	 * Set when the application has closed the connection, after which
+	 * nothing more may be sent. Written under the send lock.
+	 */
+	private volatile boolean closing;
+	/**
+	 * Set when a close gave up on data that was never acked, to fail the
+	 * future of closeAsync() with.
+	 */
+	private volatile IOException closeFailure;
+
+	/** The listening connection this one was spawned by, or null. */
+	private ConnectionImpl listener;
+	/**
+	 * Default number of connections a listening connection holds in each of
+	 * its queues: connections in the middle of the handshake, and
+	 * established connections not yet taken by accept().
+	 */
+	public static final int DEFAULT_BACKLOG = 50;
+
+	/** Size of the SYN queue and of the accept queue, see {@link #setBacklog(int)}. */
+	private volatile int backlog = DEFAULT_BACKLOG;
+	/** Number of SYNs and handshake ACKs dropped because a queue was full. */
+	private volatile int backlogDrops;
+	/**
+	 * The SYN queue: spawned connections in SYN_RCVD, by remote address and
+	 * port.
+	 */
+	private Map<String, ConnectionImpl> halfOpen;
+	/**
+	 * The accept queue: spawned connections that are established, for
+	 * accept(). The listening connection itself is put here when it is
+	 * closed.
+	 */
+	private BlockingQueue<ConnectionImpl> acceptQueue;
+	/**
+	 * Set while the local port is reserved in the {@link PortAllocator}, from
+	 * connect() or accept() until the connection is closed. A connection
+	 * that is never opened holds no port. Guarded by the state lock.
+	 */
+	private boolean portHeld;
+	/** Completed when the handshake of connectAsync() is over. */
+	private CompletableFuture<Void> connectFuture;
+	/** Completed when the connection is closed, see closeAsync(). */
+	private CompletableFuture<Void> closeFuture;
+
+	/**
+	 * Default number of data packets the receiver buffers: received in order
+	 * but not yet read by the application, or received out of order.
+	 */
+	public static final int DEFAULT_RECEIVE_WINDOW = 8;
+
+	/**
+	 * Size of the receive buffer. The free part of it is advertised to the
+	 * sender in every ACK, and packets beyond it are dropped.
+	 */
+	private volatile int receiveWindowSize = DEFAULT_RECEIVE_WINDOW;
+
+	/**
+	 * Valid packets received out of order, keyed by sequence number. Only
+	 * used by the receive dispatcher thread.
+	 */
+	private TreeMap<Integer, KtnDatagram> reorderBuffer = new TreeMap<Integer, KtnDatagram>();
+
+	/**
+	 * Time in milliseconds an ACK may be delayed when delayed ACKs are
+	 * enabled, waiting for a second packet or for outgoing data to piggyback
+	 * on.
+	 */
+	public static final int DELAYED_ACK_TIMEOUT = 50;
+
+	/** If set, in-order packets are acked every second packet or after a timer. */
+	private volatile boolean delayedAcks = false;
+
+	/** The packet whose ACK is delayed, or null. Guarded by this. */
+	private KtnDatagram pendingAck;
+	/** Cumulative ack to send with the delayed ACK. */
+	private int pendingCumulativeAck;
+	/** In-order packets received since the last ACK. */
+	private int unackedPackets;
+	/** Sends the delayed ACK when it has waited long enough. */
+	private TimerWheel.Timeout delayedAckTimer;
+	/**
+	 * Cumulative ack of the last ACK sent, or of the last ack piggybacked on
+	 * data. Data only carries an ack when it tells more than this, or an ACK
+	 * is delayed. Guarded by this.
+	 */
+	private int reportedCumulativeAck = -1;
+
+	/**
+	 * Time in milliseconds a message may wait to be sent in one packet with
+	 * the messages that follow it, when coalescing is enabled.
+	 */
+	public static final int COALESCE_DELAY = 20;
+
+	/**
+	 * Largest payload of a data packet, in characters. Longer payloads are
+	 * sent in fragments of this size, so that a loss only costs one fragment.
+	 */
+	public static final int MAX_PAYLOAD = 1024;
+
+	/**
+	 * Waiting messages are sent at once when they add up to this many
+	 * characters, framing included. No packet carries more unless a single
+	 * message does.
+	 */
+	public static final int COALESCE_LIMIT = MAX_PAYLOAD;
+
+	/**
+	 * First character of a payload that holds several messages. Each
+	 * message follows as its length in decimal, a ':' and the message
+	 * itself. A single message is sent as it is, unless it starts with this
+	 * character, {@link #FRAGMENT}, {@link #STREAM} or {@link #ACKED}. These
+	 * markers only apply to text payloads; binary payloads have a header of
+	 * bytes, see {@link #BINARY_PREFIX}.
+	 */
+	private static final char FRAMED = '\u0000';
+
+	/**
+	 * First character of a payload that is a fragment. The offset of the
+	 * fragment and the length of the whole payload follow in decimal, each
+	 * ended by a ':', and then the fragment itself.
+	 */
+	private static final char FRAGMENT = '\u0001';
+
+	/**
+	 * First character of a payload on a stream other than 0. The stream and
+	 * the number of the packet on the stream follow in decimal, each ended
+	 * by a ':', and then the payload as on stream 0: a message, framed
+	 * messages or a fragment.
+	 */
+	private static final char STREAM = '\u0002';
+
+	/**
+	 * First character of a data payload that carries a piggybacked ack. The
+	 * ack, encoded as in the ack field, follows in decimal and is ended by a
+	 * ':', and then the payload. The checksum of a KtnDatagram only covers
+	 * the payload, so only an ack given here is trusted; the ack field of a
+	 * data packet may have been changed on the way. Only data sent while
+	 * there is an ack the other side has not been told carries one.
+	 */
+	private static final char ACKED = '\u0003';
+
+	/**
+	 * Start of the payload of a binary packet: an empty String, serialized.
+	 * KtnDatagram.getPayload() deserializes the payload, and toString()
+	 * casts it to a String; the cl transport logs every datagram it sends
+	 * that way. Deserialization stops after the empty String, so the raw
+	 * bytes after it are never read as an object, and getPayload() of a
+	 * binary packet is "". A text payload is never longer than its
+	 * serialized String, so a payload that starts with this prefix and goes
+	 * on after it is binary.<br>
+	 * <br>
+	 * After the prefix follow a byte of flags, {@link #BINARY_ACKED} and
+	 * {@link #BINARY_MORE}, the piggybacked ack as an int if there is one,
+	 * and the bytes of the message.
+	 */
+	private static final byte[] BINARY_PREFIX = Util.toByteArray("");
+
+	/** Length of the part of a binary payload before its flags. */
+	static final int BINARY_HEADER = BINARY_PREFIX.length;
+
+	/** Flag of a binary payload: a piggybacked ack follows, see {@link #ACKED}. */
+	private static final byte BINARY_ACKED = 1;
+
+	/** Flag of a binary payload: more fragments of the message follow. */
+	private static final byte BINARY_MORE = 2;
+
+	/** Number of streams of a connection, see {@link StreamConnection}. */
+	public static final int MAX_STREAMS = 256;
+
+	/** The streams that have been used, by number. Stream 0 always exists. */
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+	/**
+	 * Messages waiting in streams other than 0 for the application. Each
+	 * takes up the place of a packet in the receive window.
+	 */
+	private final AtomicInteger streamBacklog = new AtomicInteger();
+
+	/** If set, small messages are sent together in one packet. */
+	private volatile boolean coalescing = false;
+	/** Messages waiting to be sent together, oldest first. Guarded by itself. */
+	private final LinkedList<String> coalesceBuffer = new LinkedList<String>();
+	/** Number of characters in {@link #coalesceBuffer}, framed. */
+	private int coalescedChars;
+	/** Sends the waiting messages when they have waited long enough. */
+	private TimerWheel.Timeout coalesceTimer;
+	/** Failure to send waiting messages, thrown by the next send(). */
+	private volatile IOException coalesceFailure;
+
+	/**
+	 * Messages of a coalesced packet that receive() has not returned yet: a
+	 * String, or a ByteBuffer for a message sent with
+	 * {@link #send(ByteBuffer)}. Guarded by itself.
+	 */
+	private final LinkedList<Object> receivedMessages = new LinkedList<Object>();
+	/** Calls of receiveAsync() waiting for a message. Guarded by receivedMessages. */
+	private final LinkedList<CompletableFuture<String>> pendingReceives = new LinkedList<CompletableFuture<String>>();
+
+	/** Gets the messages as they arrive, instead of receive(), or null. */
+	private volatile MessageListener messageListener;
+	/** Set once the other side has closed and this side has begun to close. */
+	private boolean closeDispatched;
+	/**
+	 * Set while a worker thread hands messages to the listener. Guarded by
+	 * receivedMessages.
+	 */
+	private boolean listenerRunning;
+	/**
+	 * Set when the listener is to be told that the connection closed, after
+	 * the messages before it. Guarded by receivedMessages.
+	 */
+	private boolean listenerClosePending;
+
+	/**
+	 * Ack field of the last data packet from the other side whose
+	 * piggybacked ack was handed to the send window, and its cumulative ack.
+	 */
+	private int piggybackedAck, piggybackedCumulativeAck;
+
+	/** A packet in the send window, with the time it was first sent. */
+	private static class Outstanding {
+		final KtnDatagram packet;
+		final long sentAt;
+		/** Completed when the packet is acked, or null. */
+		final CompletableFuture<Void> acked;
+		/** Set when resent: by Karn's rule its ACK gives no RTT sample. */
+		boolean retransmitted;
+
+		Outstanding(KtnDatagram packet, CompletableFuture<Void> acked) {
+			this.packet = packet;
+			this.acked = acked;
+			sentAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * A stream of messages. On the sending side, the packets that wait for
+	 * room in the send window, guarded by the send lock. On the receiving
+	 * side, the packets that arrived ahead of others of the stream and the
+	 * messages the application has not taken, guarded by the stream itself.
+	 */
+	private static class Stream {
+		final int id;
+		final LinkedList<Unsent> unsent = new LinkedList<Unsent>();
+		/** Number of the next packet sent on the stream. */
+		int sendNumber;
+		/** Number of the next packet to be received on the stream. */
+		int receiveNumber;
+		/** Payloads of packets received ahead of others, by number. */
+		final TreeMap<Integer, String> early = new TreeMap<Integer, String>();
+		/** The fragments of a payload received so far, or null. */
+		StringBuilder reassembly;
+		/** The fragments of a binary message received so far, or null. */
+		ByteArrayOutputStream binaryReassembly;
+		final LinkedList<String> messages = new LinkedList<String>();
+		/** Calls of receiveAsync() waiting for a message. */
+		final LinkedList<CompletableFuture<String>> pendingReceives = new LinkedList<CompletableFuture<String>>();
+		/** Set when no more messages will arrive. */
+		boolean ended;
+
+		Stream(int id) {
+			this.id = id;
+		}
+
+		/** @return The header of the next packet sent on the stream. */
+		String header() {
+			return id == 0 ? "" : STREAM + Integer.toString(id) + ':' + sendNumber + ':';
+		}
+	}
+
+	/** A payload that is not sent yet. */
+	private static class Unsent {
+		/** The text payload, or null for a binary one. */
+		final String payload;
+		/** The payload serialized before, or null. */
+		final SharedPayload shared;
+		/** The bytes of a binary payload, or null. */
+		final byte[] binary;
+		/** Set if more fragments of the binary message follow. */
+		final boolean more;
+		/** Completed when the packet is acked, or null. */
+		final CompletableFuture<Void> acked;
+
+		Unsent(String payload, CompletableFuture<Void> acked) {
+			this.payload = payload;
+			this.shared = null;
+			this.binary = null;
+			this.more = false;
+			this.acked = acked;
+		}
+
+		Unsent(SharedPayload shared, CompletableFuture<Void> acked) {
+			this.payload = shared.getText();
+			this.shared = shared;
+			this.binary = null;
+			this.more = false;
+			this.acked = acked;
+		}
+
+		Unsent(byte[] binary, boolean more, CompletableFuture<Void> acked) {
+			this.payload = null;
+			this.shared = null;
+			this.binary = binary;
+			this.more = more;
+			this.acked = acked;
+		}
+	}
 
 	/**
 	 * Initializes initial sequence number and setup state machine.
@@ -49,7 +547,7 @@ public class ConnectionImpl extends AbstractConnection {
 		super(); //Initializes sequence number and sets state to disabled
 		myAddress = getIPv4Address();
 		this.myPort = myPort;
-		usedPorts.put(myPort, true);
+		streams.put(0, new Stream(0));
 	}
 	
 	private static String getIPv4Address() {
@@ -61,7 +559,9 @@ public class ConnectionImpl extends AbstractConnection {
 	}
 
 	/**
-	 * Establish a connection to a remote location.
+	 * Establish a connection to a remote location. The SYN is resent with
+	 * backoff until the SYN_ACK arrives, at most {@link #HANDSHAKE_RETRIES}
+	 * times.
 	 * 
 	 * @param remoteAddress
 	 *            - the remote IP-address to connect to
@@ -75,255 +575,2530 @@ public class ConnectionImpl extends AbstractConnection {
 	 */
 	public void connect(InetAddress remoteAddress, int remotePort)
 			throws IOException, SocketTimeoutException {
+		synchronized (stateLock) {
+			startConnect(remoteAddress, remotePort);
+			awaitStateChange(State.SYN_SENT);
+		}
+		if (state != State.ESTABLISHED) {
+			throw new SocketTimeoutException("Could not establish connection!");
+		}
+		Log.writeToLog("Connection established", "ConnectionImpl");
+	}
+
+	/**
+	 * Start connecting, and return a future that is completed when the
+	 * handshake is over.
+	 * 
+	 * @see AsyncConnection#connectAsync(InetAddress, int)
+	 */
+	public CompletableFuture<Void> connectAsync(InetAddress remoteAddress, int remotePort) {
+		CompletableFuture<Void> connected = new CompletableFuture<Void>();
+		try {
+			synchronized (stateLock) {
+				startConnect(remoteAddress, remotePort);
+				connectFuture = connected;
+				completeStateFutures();
+			}
+		}
+		catch (IOException e) {
+			connected.completeExceptionally(e);
+		}
+		return connected;
+	}
+
+	/** Send the SYN. The caller must hold the state lock. */
+	private void startConnect(InetAddress remoteAddress, int remotePort) throws IOException {
+		if (state != State.CLOSED) {
+			throw new ConnectException("socket allready connected/in use");
+		}
 		this.remoteAddress = remoteAddress.getHostAddress();
 		this.remotePort = remotePort;
-		
-        if (state != State.CLOSED) {
-            throw new ConnectException("socket allready connected/in use");
-        }
-        Log.writeToLog("Trying to connect to: "
+		Log.writeToLog("Trying to connect to: "
 							+ remoteAddress.getHostAddress() 
 							+ " : " 
 							+ remotePort, 
 							"ConnectionImpl");
-		//Handshake
-		try {
-			//Send SYN to server
-			int tries = 3;
-			boolean sent = false;
-			KtnDatagram synPacket = constructInternalPacket(Flag.SYN);
-
-			// Send the SYN, trying at most `tries' times.
-			Log.writeToLog(synPacket, "Sending SYN", "ConnectionImpl");
-
-			do {
-				try {
-					simplySendPacket(synPacket);
-					//new ClSocket().send(synPacket);
-					sent = true;
-				} catch (ConnectException e) {
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException ex) {/*Ignore*/}
-				}
-			} while (!sent && (tries-- > 0));
-
-			if (!sent) {
-				nextSequenceNo--;
-				throw new ConnectException("Unable to send SYN.");
-			}
-			state = State.SYN_SENT;
-			
-			//Receive SYNACK from server
-			KtnDatagram response = receiveAck();
-
-			//Connect to the new connection
-			this.remoteAddress = response.getSrc_addr();
-			this.remotePort = response.getSrc_port();
-			
-			//ACK the SYNACK
-			sendAck(response, false);
-		}
-		catch (ConnectException e) {
-			throw e;
-		}
-		catch (Exception e) {
-			throw new ConnectException("Could not establish connection!");
-		}
-		state = State.ESTABLISHED;
-		Log.writeToLog("Connection established", "ConnectionImpl");
+		fire(Event.CONNECT, null);
 	}
 	
 	/**
-	 * Listen for, and accept, incoming connections.
+	 * Listen for, and accept, incoming connections. The first call starts
+	 * listening, and from then on every SYN that arrives is answered, also
+	 * while no thread is waiting in accept(). Handshakes run at the same
+	 * time, on the threads that receive their packets, and established
+	 * connections are handed out in the order their handshake completed.
+	 * See {@link #setBacklog(int)} for how many may be waiting.
 	 * 
 	 * @return A new ConnectionImpl-object representing the new connection.
+	 * @throws SocketException
+	 *             If the connection is closed while waiting.
 	 * @see Connection#accept()
 	 */
 	public Connection accept() throws IOException, SocketTimeoutException {
-		state = State.LISTEN;
-		KtnDatagram response = null;
-		Log.writeToLog("Listening for new connections on port " + myPort, 
-						"ConnectionImpl");
-		
-		while (!isValid(response) || response.getFlag() != Flag.SYN) {
-			//Wait for SYN package
-			response = receivePacket(true);
+		synchronized (stateLock) {
+			if (state == State.CLOSED && acceptQueue == null) {
+				Log.writeToLog("Listening for new connections on port " + myPort, 
+								"ConnectionImpl");
+				fire(Event.LISTEN, null);
+			}
+			if (state != State.LISTEN) {
+				throw new SocketException("Not listening");
+			}
+		}
+		ConnectionImpl newConnection;
+		try {
+			newConnection = acceptQueue.take();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for a connection");
+		}
+		if (newConnection == this) {
+			//Closed, let the other waiting threads know too
+			acceptQueue.offer(this);
+			throw new SocketException("Not listening");
 		}
-		
-		//Set up the new connection
-		ConnectionImpl newConnection = new ConnectionImpl(getFreePort());
-		newConnection.lastValidPacketReceived = response;
-		newConnection.state = State.SYN_RCVD;
-		newConnection.remoteAddress = response.getSrc_addr();
-		newConnection.remotePort = response.getSrc_port();
-
-		//Send SYNACK
-		newConnection.sendAck(response, true);
-
-		newConnection.receiveAck();
-		
-		//Return the established connection to client
-		newConnection.state = State.ESTABLISHED;
-		state = State.CLOSED;
 		return newConnection;
-    }
+	}
 	
-	private static int getFreePort() {
-		int port;
-		
-		while (usedPorts.containsKey(
-					port = (int)(Math.random() * 30000) + 10000))
-			;
-		return port;
+	/**
+	 * Reserve the local port when the connection is opened, by connect() or
+	 * accept(), unless it is held already. The caller must hold the state
+	 * lock.
+	 */
+	private void holdPort() {
+		if (!portHeld) {
+			portHeld = PortAllocator.getShared().reserve(myPort);
+		}
+	}
+
+	/** Give the local port back to the {@link PortAllocator}, if it is held. */
+	private void releasePort() {
+		synchronized (stateLock) {
+			if (portHeld) {
+				portHeld = false;
+				PortAllocator.getShared().release(myPort);
+			}
+		}
 	}
 
 	/**
-	 * Send a message from the application.
+	 * Set the number of unacknowledged data packets that may be in flight at
+	 * the same time. A window of 1 gives stop-and-wait behaviour.
 	 * 
-	 * @param msg
-	 *            - the String to be sent.
-	 * @throws ConnectException
-	 *             If no connection exists.
-	 * @throws IOException
-	 *             If no ACK was received.
-	 * @see AbstractConnection#sendDataPacketWithRetransmit(KtnDatagram)
-	 * @see no.ntnu.fp.net.co.Connection#send(String)
+	 * @param size
+	 *            - the new window size, at least 1.
 	 */
-	public synchronized void send(String msg) throws ConnectException, IOException {
-		if (state != State.ESTABLISHED) {
-			throw new ConnectException("Cannot send without an established connection");
+	public void setSendWindowSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Send window must be at least 1.");
 		}
-		KtnDatagram ack = null;
-		
-		while (ack == null) {
-			try {
-				ack = sendDataPacketWithRetransmit(constructDataPacket(msg));
-				
-				if (!isValid(ack)) {
-					//Bad checksum? Send again
-					ack = null;
-				}
-			}
-			catch (SocketException e) {/*Try again*/}
+		synchronized (sendLock) {
+			sendWindowSize = size;
+			pump();
+		}
+	}
+
+	/**
+	 * @return The number of unacknowledged data packets that may be in flight.
+	 */
+	public int getSendWindowSize() {
+		synchronized (sendLock) {
+			return sendWindowSize;
 		}
 	}
 
 	/**
-	 * Wait for incoming data.
+	 * Replace the congestion control of this connection. Connections
+	 * returned by {@link #accept()} start with a
+	 * {@link NewRenoCongestionControl} of their own.
 	 * 
-	 * @return The received data's payload as a String.
-	 * @see Connection#receive()
-	 * @see AbstractConnection#receivePacket(boolean)
-	 * @see AbstractConnection#sendAck(KtnDatagram, boolean)
+	 * @param control
+	 *            - the congestion control to use from now on.
 	 */
-	public String receive() throws ConnectException, IOException {
-		if (state != State.ESTABLISHED) {
-			throw new ConnectException("No connection");
+	public void setCongestionControl(CongestionControl control) {
+		if (control == null) {
+			throw new IllegalArgumentException("Congestion control must not be null.");
+		}
+		synchronized (sendLock) {
+			congestionControl = control;
 		}
-		KtnDatagram received = null;
+	}
 
-		while (received == null) {
-			try{
-				received = receivePacket(false);
-			}catch(EOFException e){
-				try {
-					Thread.sleep(150);
-				} catch (InterruptedException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
-				sendAck(disconnectRequest, false);
-				this.state = State.CLOSE_WAIT;
-				close();
-				throw e;
-			}
-			if (lastValidPacketReceived != null && 
-					received.getSeq_nr() <= lastValidPacketReceived.getSeq_nr()) {
-				//Ignore the already received packet
-				received = null;
-			}
-			else if (!isValid(received)) {
-				//Probably indicates a checksum mismatch
-				received = null;
-			}
+	/**
+	 * @return The congestion control of this connection.
+	 */
+	public CongestionControl getCongestionControl() {
+		synchronized (sendLock) {
+			return congestionControl;
+		}
+	}
+
+	/**
+	 * @return The congestion window, in packets. Fewer packets than this and
+	 *         the send window are in flight at any time.
+	 */
+	public int getCongestionWindow() {
+		return getCongestionControl().getWindow();
+	}
 
+	/**
+	 * @return The number of packets that may be in flight right now: the
+	 *         smallest of the send window, the congestion window and the
+	 *         receive window of the other side. At least one packet is
+	 *         always allowed, so that a closed receive window is probed.
+	 *         Outside recovery, each of the first two duplicate ACKs lets one
+	 *         more packet out (limited transmit, RFC 3042), so that a small
+	 *         congestion window can still bring in enough duplicates for a
+	 *         fast retransmit.
+	 */
+	private int effectiveWindow() {
+		long peerWindow = (long)peerWindowEdge - firstUnacked() + 1;
+		int congestionWindow = congestionControl.getWindow();
+		if (recoveryPoint < 0 && duplicateAcks < DUPLICATE_ACK_THRESHOLD) {
+			congestionWindow += duplicateAcks;
 		}
-		//ACK the received packet
-		sendAck(received, false);
-		lastValidPacketReceived = received;
-		return (String)received.getPayload();
+		return (int)Math.max(1, Math.min(Math.min(sendWindowSize, congestionWindow), peerWindow));
 	}
 
+	/**
+	 * @return The sequence number of the oldest unacknowledged packet, or of
+	 *         the next packet if all are acknowledged.
+	 */
+	private int firstUnacked() {
+		if (!retransmitBuffer.isEmpty()) {
+			return retransmitBuffer.getFirst().packet.getSeq_nr();
+		}
+		return lastDataPacketSent != null ? lastDataPacketSent.getSeq_nr() + 1 : 0;
+	}
 
 	/**
-	 * Close the connection.
-	 * 
-	 * @see Connection#close()
+	 * Take the receive window from an ACK, SYN_ACK or piggybacked ack,
+	 * unless a later ack has already been seen.
 	 */
-	public void close() throws IOException {
-			
-		/*
-		 * start of adabra edits
-		 */
-		
-		if(state == State.CLOSE_WAIT){
-			KtnDatagram finPacket = constructInternalPacket(Flag.FIN);
-			
-			try {
-				Thread.sleep(1000);
-				System.out.println("Jeg ville sende FIN!!!");
-				simplySendPacket(finPacket);
-			} catch (ClException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				
-			}
-			
-			KtnDatagram ack = receiveAck();
-			this.state = State.CLOSED;
+	private void updatePeerWindow(KtnDatagram ack) {
+		int cumulative = cumulativeAckOf(ack);
+		if (cumulative >= peerWindowAck) {
+			peerWindowAck = cumulative;
+			peerWindowEdge = cumulative + windowOf(ack);
 		}
-		
-		
-		else if(this.state == State.ESTABLISHED){
-			KtnDatagram finPacket = constructInternalPacket(Flag.FIN);
-			try {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				simplySendPacket(finPacket);
-			} catch (ClException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			this.state = State.FIN_WAIT_1;
-			KtnDatagram ackToFin = receiveAck();
-			this.state = State.FIN_WAIT_2;
-			
-			KtnDatagram FIN = receivePacket(true);
-			if(FIN == null){
-				System.out.println("Fin blei null");
-			}
-			
-			sendAck(FIN, false);
-			this.state = State.TIME_WAIT;
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {}
-			this.state = State.CLOSED;	
+	}
+
+	/**
+	 * Set the number of data packets the receiver buffers, in order for the
+	 * application or out of order. The free part of the buffer is advertised
+	 * to the sender, which stops sending when it is full.
+	 * 
+	 * @param size
+	 *            - the new window size, from 1 to
+	 *            {@link AbstractConnection#MAX_ADVERTISED_WINDOW}.
+	 */
+	public void setReceiveWindowSize(int size) {
+		if (size < 1 || size > MAX_ADVERTISED_WINDOW) {
+			throw new IllegalArgumentException("Receive window must be between 1 and " 
+					+ MAX_ADVERTISED_WINDOW + ".");
 		}
-		/*
-		 * end  adabrakode
-		 */
-	}		
+		receiveWindowSize = size;
+	}
+
+	/**
+	 * @return The number of data packets the receiver buffers.
+	 */
+	public int getReceiveWindowSize() {
+		return receiveWindowSize;
+	}
 
+	/**
+	 * @return The receive window last advertised by the other side, counted
+	 *         from the oldest packet it has not acked, or -1 if it is not
+	 *         known yet.
+	 */
+	public int getPeerWindow() {
+		int edge = peerWindowEdge;
+		if (edge == Integer.MAX_VALUE) {
+			return -1;
+		}
+		synchronized (sendLock) {
+			return Math.max(0, edge - firstUnacked() + 1);
+		}
+	}
+
+	/**
+	 * @return The number of packets resent to find out whether a closed
+	 *         receive window has opened again.
+	 */
+	public int getWindowProbes() {
+		return windowProbes;
+	}
+
+	/**
+	 * The free part of the receive buffer. Messages waiting in streams other
+	 * than 0 count as a packet each.
+	 * 
+	 * @see AbstractConnection#advertisedWindow()
+	 */
+	protected int advertisedWindow() {
+		return Math.max(0, receiveWindowSize - bufferedPackets() - streamBacklog.get());
+	}
+
+	/**
+	 * Turn delayed ACKs on or off. When on, packets that arrive in order are
+	 * acked every second packet, or after {@link #DELAYED_ACK_TIMEOUT}
+	 * milliseconds, unless outgoing data carries the ack first. Packets out
+	 * of order and duplicates are always acked at once. This pays off for
+	 * traffic in both directions or with a send window above 1; with
+	 * stop-and-wait traffic in one direction it only adds the timer to
+	 * every packet.
+	 * 
+	 * @param on
+	 *            - true to delay ACKs.
+	 */
+	public void setDelayedAcks(boolean on) {
+		delayedAcks = on;
+		if (!on) {
+			flushDelayedAck();
+		}
+	}
+
+	/**
+	 * @return true if ACKs are delayed.
+	 */
+	public boolean isDelayedAcks() {
+		return delayedAcks;
+	}
+
+	/**
+	 * Turn coalescing of small messages on or off. When on, send() only
+	 * queues the message and returns. Queued messages are sent together in
+	 * one packet after {@link #COALESCE_DELAY} milliseconds, when they add up
+	 * to {@link #COALESCE_LIMIT} characters, or as soon as an ACK leaves no
+	 * packet in flight, whichever comes first. This is Nagle's algorithm with
+	 * a timer on top. The other side splits the packet up again, so receive()
+	 * still returns one message at a time, whether or not it coalesces
+	 * itself.<br>
+	 * <br>
+	 * A failure to send queued messages is thrown by the next call to
+	 * send().
+	 * 
+	 * @param on
+	 *            - true to coalesce messages.
+	 */
+	public void setCoalescing(boolean on) {
+		coalescing = on;
+	}
+
+	/**
+	 * @return true if small messages are sent together.
+	 */
+	public boolean isCoalescing() {
+		return coalescing;
+	}
+
+	/**
+	 * Hand messages to a listener as they arrive, instead of waiting for
+	 * them in receive(). The listener is called on a worker thread of the
+	 * {@link TimerWheel}, one message at a time and in order, so an idle
+	 * connection needs no thread at all, and a slow listener does not hold
+	 * up the thread that receives the datagrams. Messages that have arrived
+	 * already are handed over at once. When the other side closes the
+	 * connection, it is closed before the listener is told. Do not call
+	 * receive() while a listener is set.
+	 * 
+	 * @param listener
+	 *            - the listener, or null to go back to receive().
+	 */
+	public void setMessageListener(MessageListener listener) {
+		messageListener = listener;
+		dispatchMessages();
+	}
+
+	/**
+	 * @return The message listener, or null.
+	 */
+	public MessageListener getMessageListener() {
+		return messageListener;
+	}
+
+	/**
+	 * @return The number of lost packets that were resent after
+	 *         {@link #DUPLICATE_ACK_THRESHOLD} duplicate ACKs, without waiting
+	 *         for the retransmission timer.
+	 */
+	public int getFastRetransmits() {
+		return fastRetransmits;
+	}
+
+	/**
+	 * @return The number of times the retransmission timer expired and the
+	 *         send window was resent.
+	 */
+	public int getTimeoutRetransmits() {
+		return timeoutRetransmits;
+	}
+
+	/**
+	 * Set the size of the two queues of a listening connection. At most this
+	 * many connections can be in the middle of the handshake; further SYNs
+	 * are dropped, and the other side sends them again. At most this many
+	 * established connections wait for accept(); the last ACK of further
+	 * handshakes is dropped, so that the SYN_ACK is resent until there is
+	 * room. Takes effect when the connection starts listening.
+	 * 
+	 * @param backlog
+	 *            - the size of each queue, at least 1.
+	 */
+	public void setBacklog(int backlog) {
+		if (backlog < 1) {
+			throw new IllegalArgumentException("Backlog must be at least 1.");
+		}
+		this.backlog = backlog;
+	}
+
+	/**
+	 * @return The size of the SYN queue and of the accept queue.
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * @return The number of SYNs and handshake ACKs a listening connection
+	 *         has dropped because its SYN queue or accept queue was full.
+	 */
+	public int getBacklogDrops() {
+		return backlogDrops;
+	}
+
+	/**
+	 * Send a message from the application. The message is put in the send
+	 * window and transmitted at once; the method only blocks while the window
+	 * is full, or messages sent before are still waiting for room. When the
+	 * retransmission timer of the oldest unacknowledged packet expires, the
+	 * packets that are still unacknowledged are sent again. With coalescing
+	 * enabled, the message is queued instead, see
+	 * {@link #setCoalescing(boolean)}.
+	 * 
+	 * @param msg
+	 *            - the String to be sent.
+	 * @throws ConnectException
+	 *             If no connection exists.
+	 * @throws IOException
+	 *             If an I/O error occurs while sending or waiting for ACKs.
+	 * @see no.ntnu.fp.net.co.Connection#send(String)
+	 */
+	public void send(String msg) throws ConnectException, IOException {
+		if (coalescing) {
+			coalesce(msg);
+			return;
+		}
+		synchronized (sendLock) {
+			//Messages queued before coalescing was turned off go first
+			sendCoalesced();
+			sendPacket(stream(0), new String[] { msg }, null);
+			awaitRoom(stream(0));
+		}
+	}
+
+	/**
+	 * Send a message on a stream. It is sent in turn with the packets of
+	 * the other streams, and is never coalesced. The method blocks while
+	 * the send window is full, or messages sent before on the stream are
+	 * still waiting for room.
+	 * 
+	 * @see StreamConnection#send(int, String)
+	 */
+	public void send(int stream, String msg) throws ConnectException, IOException {
+		if (stream == 0) {
+			send(msg);
+			return;
+		}
+		Stream s = stream(stream);
+		synchronized (sendLock) {
+			sendPacket(s, new String[] { msg }, null);
+			awaitRoom(s);
+		}
+	}
+
+	/**
+	 * Send a message without waiting for room in the send window. The
+	 * message gets a packet of its own, also with coalescing enabled, so
+	 * that its ACK completes the future.
+	 * 
+	 * @see AsyncConnection#sendAsync(String)
+	 */
+	public CompletableFuture<Void> sendAsync(String msg) {
+		return sendAsync(0, msg);
+	}
+
+	/**
+	 * Send a message on a stream without waiting for room in the send
+	 * window.
+	 * 
+	 * @see StreamConnection#sendAsync(int, String)
+	 */
+	public CompletableFuture<Void> sendAsync(int stream, String msg) {
+		Stream s = stream(stream);
+		CompletableFuture<Void> acked = new CompletableFuture<Void>();
+		try {
+			synchronized (sendLock) {
+				if (stream == 0) {
+					sendCoalesced();
+				}
+				sendPacket(s, new String[] { msg }, acked);
+			}
+		}
+		catch (IOException e) {
+			acked.completeExceptionally(e);
+		}
+		return acked;
+	}
+
+	/**
+	 * Send a message serialized once for many connections. The packet only
+	 * gets a header of its own. A message that must be framed or split in
+	 * fragments, or is sent with coalescing enabled, is sent as by
+	 * {@link #send(String)} instead.
+	 * 
+	 * @see BroadcastConnection#send(SharedPayload)
+	 */
+	public void send(SharedPayload payload) throws ConnectException, IOException {
+		if (coalescing || !isShareable(payload)) {
+			send(payload.getText());
+			return;
+		}
+		synchronized (sendLock) {
+			sendCoalesced();
+			sendShared(payload, null);
+			awaitRoom(stream(0));
+		}
+	}
+
+	/**
+	 * Send a message serialized once for many connections without waiting
+	 * for room in the send window.
+	 * 
+	 * @see BroadcastConnection#sendAsync(SharedPayload)
+	 */
+	public CompletableFuture<Void> sendAsync(SharedPayload payload) {
+		if (!isShareable(payload)) {
+			return sendAsync(payload.getText());
+		}
+		CompletableFuture<Void> acked = new CompletableFuture<Void>();
+		try {
+			synchronized (sendLock) {
+				sendCoalesced();
+				sendShared(payload, acked);
+			}
+		}
+		catch (IOException e) {
+			acked.completeExceptionally(e);
+		}
+		return acked;
+	}
+
+	/** @return true if a shared payload fits in one packet as it is. */
+	private static boolean isShareable(SharedPayload payload) {
+		return payload.getText().length() <= MAX_PAYLOAD && isPlain(payload.getText());
+	}
+
+	/** Queue a shared payload on stream 0. The caller must hold the send lock. */
+	private void sendShared(SharedPayload payload, CompletableFuture<Void> acked) 
+			throws ConnectException {
+		checkSendable();
+		queue(stream(0), new Unsent(payload, acked));
+		pump();
+	}
+
+	/**
+	 * @return A stream, created on first use.
+	 * @throws IllegalArgumentException
+	 *             If there is no such stream.
+	 */
+	private Stream stream(int id) {
+		Stream stream = streams.get(id);
+		if (stream == null) {
+			if (id < 0 || id >= MAX_STREAMS) {
+				throw new IllegalArgumentException("No stream " + id + ", there are " + MAX_STREAMS);
+			}
+			Stream created = new Stream(id);
+			stream = streams.putIfAbsent(id, created);
+			if (stream == null) {
+				stream = created;
+			}
+		}
+		return stream;
+	}
+
+	/**
+	 * Send raw bytes as one message, like {@link #send(String)}. The bytes
+	 * are copied into packets of their own, in fragments of at most
+	 * {@link #MAX_PAYLOAD} bytes, behind a header of bytes, see
+	 * {@link #BINARY_PREFIX}; they are never converted to a String or
+	 * serialized. Binary messages are not coalesced, and only go on stream 0.
+	 * 
+	 * @see BinaryConnection#send(ByteBuffer)
+	 */
+	public void send(ByteBuffer src) throws ConnectException, IOException {
+		synchronized (sendLock) {
+			//Messages queued before go first
+			sendCoalesced();
+			checkSendable();
+			Stream stream = stream(0);
+			do {
+				byte[] body = new byte[Math.min(src.remaining(), MAX_PAYLOAD)];
+				src.get(body);
+				queue(stream, new Unsent(body, src.hasRemaining(), null));
+			} while (src.hasRemaining());
+			pump();
+			awaitRoom(stream);
+		}
+	}
+
+	/**
+	 * Send messages on a stream in one data packet, or in fragments of at
+	 * most {@link #MAX_PAYLOAD} characters if they do not fit. The packets
+	 * are queued behind the ones of the stream still waiting for room in the
+	 * send window, and transmitted as far as the window allows. The caller
+	 * must hold the send lock.
+	 * 
+	 * @param messages
+	 *            - the messages of the packet, see {@link #frame(String[])}.
+	 * @param acked
+	 *            - completed when the last packet is acked, or null.
+	 */
+	private void sendPacket(Stream stream, String[] messages, CompletableFuture<Void> acked) 
+			throws ConnectException, IOException {
+		checkSendable();
+		String payload = frame(messages);
+		if (stream.header().length() + payload.length() <= MAX_PAYLOAD) {
+			queue(stream, payload, acked);
+		}
+		else {
+			int offset = 0;
+			while (offset < payload.length()) {
+				String header = FRAGMENT + Integer.toString(offset) + ':' + payload.length() + ':';
+				int end = Math.min(payload.length(), 
+						offset + MAX_PAYLOAD - stream.header().length() - header.length());
+				queue(stream, header + payload.substring(offset, end), 
+						end == payload.length() ? acked : null);
+				offset = end;
+			}
+		}
+		pump();
+	}
+
+	/** Put a packet in the queue of a stream. The caller must hold the send lock. */
+	private void queue(Stream stream, String payload, CompletableFuture<Void> acked) {
+		queue(stream, new Unsent(stream.header() + payload, acked));
+	}
+
+	/** Put a packet, with its stream header, in the queue of a stream. */
+	private void queue(Stream stream, Unsent unsent) {
+		if (stream.unsent.isEmpty()) {
+			sendingStreams.add(stream);
+		}
+		stream.unsent.add(unsent);
+		stream.sendNumber++;
+	}
+
+	/**
+	 * Transmit unsent packets while there is room in the send window, one
+	 * from each stream in turn. Called when packets are queued, and when
+	 * ACKs make room. The caller must hold the send lock.
+	 */
+	private void pump() {
+		while (!sendingStreams.isEmpty() && canSend() && packetsInFlight() < effectiveWindow()) {
+			Stream stream = sendingStreams.removeFirst();
+			Unsent unsent = stream.unsent.removeFirst();
+			if (!stream.unsent.isEmpty()) {
+				sendingStreams.add(stream);
+			}
+			sendPayload(unsent);
+		}
+	}
+
+	/**
+	 * Wait while packets of the stream are waiting for room in the send
+	 * window, or the window is full and no other stream waits for it, so
+	 * that an application sending faster than the network is held back.
+	 * While other streams wait, room goes to them in turn and this stream's
+	 * next packet waits for its own turn instead. ACKs are handled as they
+	 * arrive, see {@link #ackReceived(KtnDatagram)}, and wake this thread
+	 * when they make room. The caller must hold the send lock.
+	 */
+	private void awaitRoom(Stream stream) throws InterruptedIOException {
+		while (canSend() && (!stream.unsent.isEmpty() 
+				|| (sendingStreams.isEmpty() && packetsInFlight() >= effectiveWindow()))) {
+			try {
+				sendLock.wait();
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the send window");
+			}
+		}
+	}
+
+	/**
+	 * Put one data packet in the send window and transmit it. The caller
+	 * must hold the send lock.
+	 */
+	private void sendPayload(Unsent unsent) {
+		CompletableFuture<Void> acked = unsent.acked;
+		KtnDatagram packet;
+		synchronized (this) {
+			KtnDatagram lastReceived = lastValidPacketReceived;
+			//ACKs are built from the same sequence counter
+			if (unsent.shared != null || lastReceived == null 
+					|| (pendingAck == null && lastReceived.getSeq_nr() == reportedCumulativeAck)) {
+				//A shared payload can not carry an ack of this connection,
+				//and an ack that was sent before need not be repeated
+				if (unsent.shared != null) {
+					packet = constructDataPacket(unsent.shared);
+				}
+				else if (unsent.binary != null) {
+					packet = constructBinaryPacket(unsent, false, 0);
+				}
+				else {
+					packet = constructDataPacket(unsent.payload);
+				}
+			}
+			else {
+				int cumulative = lastReceived.getSeq_nr();
+				int ack = encodeAck(cumulative, advertisedWindow());
+				packet = unsent.binary != null ? constructBinaryPacket(unsent, true, ack) 
+						: constructDataPacket(ACKED + Integer.toString(ack) + ':' + unsent.payload);
+				reportedCumulativeAck = cumulative;
+				//The ack piggybacked on the data replaces a delayed ACK
+				if (pendingAck != null && cumulative >= pendingCumulativeAck) {
+					clearDelayedAck();
+				}
+			}
+		}
+		retransmitBuffer.add(new Outstanding(packet, acked));
+		lastDataPacketSent = packet;
+		if (retransmitBuffer.size() == 1) {
+			restartRetransmitTimer();
+		}
+		transmit(packet);
+	}
+
+	/**
+	 * Build a data packet with a binary payload, see {@link #BINARY_PREFIX}.
+	 * The bytes are set as they are, with a checksum computed here.
+	 * 
+	 * @param acked
+	 *            - true to piggyback the given ack, as with {@link #ACKED}.
+	 */
+	private KtnDatagram constructBinaryPacket(Unsent unsent, boolean acked, int ack) {
+		ByteBuffer payload = ByteBuffer.allocate(BINARY_HEADER + 1 + (acked ? 4 : 0) + unsent.binary.length);
+		payload.put(BINARY_PREFIX);
+		payload.put((byte)((acked ? BINARY_ACKED : 0) | (unsent.more ? BINARY_MORE : 0)));
+		if (acked) {
+			payload.putInt(ack);
+		}
+		payload.put(unsent.binary);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array());
+		return constructDataPacket(payload.array(), crc.getValue());
+	}
+
+	/** @return true if a data packet has a binary payload, see {@link #BINARY_PREFIX}. */
+	static boolean isBinary(KtnDatagram packet) {
+		byte[] bytes = packet.getPayloadAsBytes();
+		if (bytes == null || bytes.length <= BINARY_HEADER) {
+			return false;
+		}
+		for (int i = 0; i < BINARY_PREFIX.length; i++) {
+			if (bytes[i] != BINARY_PREFIX[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The payload for a packet with the given messages: a single
+	 *         message as it is, or the messages framed after
+	 *         {@link #FRAMED}.
+	 */
+	private static String frame(String[] messages) {
+		if (messages.length == 1 && isPlain(messages[0])) {
+			return messages[0];
+		}
+		StringBuilder payload = new StringBuilder();
+		payload.append(FRAMED);
+		for (String msg : messages) {
+			payload.append(msg.length()).append(':').append(msg);
+		}
+		return payload.toString();
+	}
+
+	/**
+	 * @return true if a message can be the payload of a packet as it is: it
+	 *         does not start like a framed payload, a fragment, a packet of
+	 *         a stream or a piggybacked ack.
+	 */
+	private static boolean isPlain(String message) {
+		return message.length() == 0 || (message.charAt(0) != FRAMED && message.charAt(0) != FRAGMENT 
+				&& message.charAt(0) != STREAM && message.charAt(0) != ACKED);
+	}
+
+	/**
+	 * Split a payload built by {@link #frame(String[])} into its messages.
+	 * 
+	 * @throws IOException
+	 *             If the framing is damaged.
+	 */
+	private static LinkedList<String> unframe(String payload) throws IOException {
+		LinkedList<String> messages = new LinkedList<String>();
+		if (payload.length() == 0 || payload.charAt(0) != FRAMED) {
+			messages.add(payload);
+			return messages;
+		}
+		int pos = 1;
+		try {
+			while (pos < payload.length()) {
+				int colon = payload.indexOf(':', pos);
+				int end = colon + 1 + Integer.parseInt(payload.substring(pos, colon));
+				messages.add(payload.substring(colon + 1, end));
+				pos = end;
+			}
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Damaged message framing: " + e.getMessage());
+		}
+		return messages;
+	}
+
+	/**
+	 * @return The number of characters a message takes up in a framed
+	 *         payload.
+	 */
+	private static int framedLength(String msg) {
+		return Integer.toString(msg.length()).length() + 1 + msg.length();
+	}
+
+	/**
+	 * Add a received payload to the fragments of the stream received before
+	 * it. Fragments are handed over in order, as they have consecutive
+	 * numbers on the stream.
+	 * 
+	 * @return The whole payload once its last fragment has arrived, or null
+	 *         while fragments are missing.
+	 * @throws IOException
+	 *             If a fragment does not follow the previous one.
+	 */
+	private static String reassemble(String payload, Stream stream) throws IOException {
+		if (stream.binaryReassembly != null) {
+			stream.binaryReassembly = null;
+			throw new IOException("Incomplete fragmented message");
+		}
+		if (payload.length() == 0 || payload.charAt(0) != FRAGMENT) {
+			if (stream.reassembly != null) {
+				stream.reassembly = null;
+				throw new IOException("Incomplete fragmented message");
+			}
+			return payload;
+		}
+		int offset, total, start;
+		try {
+			int colon = payload.indexOf(':');
+			offset = Integer.parseInt(payload.substring(1, colon));
+			start = payload.indexOf(':', colon + 1) + 1;
+			total = Integer.parseInt(payload.substring(colon + 1, start - 1));
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Damaged fragment header: " + e.getMessage());
+		}
+		if (offset == 0) {
+			stream.reassembly = new StringBuilder(total);
+		}
+		if (stream.reassembly == null || stream.reassembly.length() != offset) {
+			stream.reassembly = null;
+			throw new IOException("Fragment out of order at offset " + offset);
+		}
+		stream.reassembly.append(payload, start, payload.length());
+		if (stream.reassembly.length() < total) {
+			return null;
+		}
+		String whole = stream.reassembly.toString();
+		stream.reassembly = null;
+		return whole;
+	}
+
+	/**
+	 * Add the bytes of a binary packet to the fragments received before it,
+	 * like {@link #reassemble(String, Stream)}. A message in one packet is
+	 * not copied: the buffer wraps the payload of the packet.
+	 * 
+	 * @return The whole message once its last fragment has arrived, or null
+	 *         while fragments are missing.
+	 * @throws IOException
+	 *             If a text fragment was expected.
+	 */
+	private static ByteBuffer reassembleBinary(KtnDatagram packet, Stream stream) throws IOException {
+		if (stream.reassembly != null) {
+			stream.reassembly = null;
+			throw new IOException("Incomplete fragmented message");
+		}
+		byte[] bytes = packet.getPayloadAsBytes();
+		byte flags = bytes[BINARY_HEADER];
+		int start = BINARY_HEADER + 1 + ((flags & BINARY_ACKED) != 0 ? 4 : 0);
+		boolean more = (flags & BINARY_MORE) != 0;
+		if (stream.binaryReassembly == null && !more) {
+			return ByteBuffer.wrap(bytes, start, bytes.length - start);
+		}
+		if (stream.binaryReassembly == null) {
+			stream.binaryReassembly = new ByteArrayOutputStream();
+		}
+		stream.binaryReassembly.write(bytes, start, bytes.length - start);
+		if (more) {
+			return null;
+		}
+		ByteBuffer whole = ByteBuffer.wrap(stream.binaryReassembly.toByteArray());
+		stream.binaryReassembly = null;
+		return whole;
+	}
+
+	/**
+	 * Put the messages of a packet of stream 0 in {@link #receivedMessages},
+	 * once the message it is part of is whole.
+	 * 
+	 * @throws IOException
+	 *             If the message is damaged.
+	 */
+	private void unpack(KtnDatagram packet) throws IOException {
+		if (isBinary(packet)) {
+			ByteBuffer message = reassembleBinary(packet, stream(0));
+			if (message != null) {
+				synchronized (receivedMessages) {
+					receivedMessages.add(message);
+				}
+			}
+			return;
+		}
+		String payload = reassemble(payloadOf(packet), stream(0));
+		if (payload != null) {
+			//Coalesced messages are returned one at a time
+			synchronized (receivedMessages) {
+				receivedMessages.addAll(unframe(payload));
+			}
+		}
+	}
+
+	/**
+	 * @return A message of {@link #receivedMessages} as text. A binary
+	 *         message, given to a listener or to receiveAsync(), has every
+	 *         byte as the char of the same value (ISO-8859-1).
+	 */
+	private static String text(Object message) {
+		if (message instanceof String) {
+			return (String)message;
+		}
+		ByteBuffer bytes = ((ByteBuffer)message).duplicate();
+		return StandardCharsets.ISO_8859_1.decode(bytes).toString();
+	}
+
+	/**
+	 * Queue a message to be sent together with the next ones. Sends the
+	 * queue right away if it has reached the size limit, otherwise makes
+	 * sure the timer will send it.
+	 */
+	private void coalesce(String msg) throws ConnectException, IOException {
+		if (msg == null) {
+			throw new IllegalArgumentException("Payload can not be null.");
+		}
+		IOException failure = coalesceFailure;
+		if (failure != null) {
+			coalesceFailure = null;
+			throw failure;
+		}
+		checkSendable();
+		boolean full;
+		synchronized (coalesceBuffer) {
+			coalesceBuffer.add(msg);
+			coalescedChars += framedLength(msg);
+			full = coalescedChars >= COALESCE_LIMIT;
+			if (!full && coalesceTimer == null) {
+				coalesceTimer = TimerWheel.getShared().schedule(new Runnable() {
+					public void run() {
+						synchronized (sendLock) {
+							flushCoalesced();
+						}
+					}
+				}, COALESCE_DELAY);
+			}
+		}
+		if (full) {
+			synchronized (sendLock) {
+				sendCoalesced();
+				awaitRoom(stream(0));
+			}
+		}
+	}
+
+	/**
+	 * Send the queued messages, at most {@link #COALESCE_LIMIT} characters
+	 * to a packet, framing included. The packets wait for room in the send
+	 * window like any other. The caller must hold the send lock, which keeps
+	 * the packets in order.
+	 */
+	private void sendCoalesced() throws ConnectException, IOException {
+		String[] messages;
+		while ((messages = takeCoalesced()) != null) {
+			sendPacket(stream(0), messages, null);
+		}
+	}
+
+	/**
+	 * Send the queued messages on the timer or an ACK, where a failure can
+	 * not be thrown; it is kept for the next send(). The caller must hold the
+	 * send lock.
+	 */
+	private void flushCoalesced() {
+		try {
+			sendCoalesced();
+		}
+		catch (IOException e) {
+			Log.writeToLog("Could not send queued messages: " + e.getMessage(), "ConnectionImpl");
+			coalesceFailure = e;
+		}
+	}
+
+	/**
+	 * @return The oldest queued messages that fit in one packet, or null if
+	 *         there are none.
+	 */
+	private String[] takeCoalesced() {
+		synchronized (coalesceBuffer) {
+			if (coalesceTimer != null) {
+				coalesceTimer.cancel();
+				coalesceTimer = null;
+			}
+			if (coalesceBuffer.isEmpty()) {
+				return null;
+			}
+			LinkedList<String> messages = new LinkedList<String>();
+			//The FRAMED marker comes first
+			int chars = 1;
+			while (!coalesceBuffer.isEmpty() && (messages.isEmpty() 
+					|| chars + framedLength(coalesceBuffer.getFirst()) <= COALESCE_LIMIT)) {
+				String msg = coalesceBuffer.removeFirst();
+				chars += framedLength(msg);
+				messages.add(msg);
+			}
+			coalescedChars -= chars - 1;
+			return messages.toArray(new String[messages.size()]);
+		}
+	}
+
+	/**
+	 * @return The span of sequence numbers from the oldest unacknowledged
+	 *         packet to the last packet sent. Packets acked out of order
+	 *         still count, as the receiver can not buffer beyond its window.
+	 */
+	private int packetsInFlight() {
+		if (retransmitBuffer.isEmpty()) {
+			return 0;
+		}
+		return lastDataPacketSent.getSeq_nr() - retransmitBuffer.getFirst().packet.getSeq_nr() + 1;
+	}
+
+	/**
+	 * Start the retransmission timer of the oldest unacknowledged packet
+	 * over, or stop it when no packet is waiting for an ACK. The caller must
+	 * hold the send lock.
+	 */
+	private void restartRetransmitTimer() {
+		if (retransmitTimer != null) {
+			retransmitTimer.cancel();
+			retransmitTimer = null;
+		}
+		final int generation = ++retransmitGeneration;
+		if (retransmitBuffer.isEmpty()) {
+			return;
+		}
+		retransmitTimer = TimerWheel.getShared().schedule(new Runnable() {
+			public void run() {
+				retransmitTimeout(generation);
+			}
+		}, rttEstimator.getTimeout());
+	}
+
+	/**
+	 * The retransmission timer has expired: resend every packet in the
+	 * window, or probe a closed receive window, and back off the
+	 * retransmission timeout. A closing connection gives up on its packets
+	 * when no ACK has released one within the receive timeout, see
+	 * {@link RttEstimator#getReceiveTimeout()}, so that the FIN can be sent;
+	 * the close then fails, as data was lost.
+	 */
+	private void retransmitTimeout(int generation) {
+		boolean drained = false;
+		synchronized (sendLock) {
+			if (generation != retransmitGeneration || retransmitBuffer.isEmpty()) {
+				return;
+			}
+			retransmitTimer = null;
+			if (closing && System.currentTimeMillis() - lastProgress >= rttEstimator.getReceiveTimeout()) {
+				String reason = "Closed with " + retransmitBuffer.size() + " unacknowledged packet(s) to " 
+						+ remoteAddress + ":" + remotePort;
+				Log.writeToLog(reason, "ConnectionImpl");
+				System.err.println("ConnectionImpl: " + reason);
+				closeFailure = new ConnectException(reason);
+				abandonPackets("Gave up waiting for an ACK");
+				drained = true;
+			}
+			else {
+				rttEstimator.backoff();
+				if (retransmitBuffer.getFirst().packet.getSeq_nr() > peerWindowEdge) {
+					probeWindow();
+				}
+				else {
+					congestionControl.onTimeout(packetsInFlight(), lastDataPacketSent.getSeq_nr());
+					retransmitWindow();
+				}
+			}
+		}
+		if (drained) {
+			fireQuietly(Event.DRAINED, null);
+		}
+	}
+
+	/**
+	 * Handle an ACK: every packet up to and including the cumulative ack is
+	 * removed from the retransmit buffer, and so is the packet named by a
+	 * selective ack. An ACK that releases a packet ends the backoff of the
+	 * retransmission timeout, and the timer is restarted from the timeout
+	 * without backoff if the oldest packet was acked (RFC 6298, 5.3 and 5.7).
+	 * A cumulative ack beyond the last packet sent must have been damaged on
+	 * the way, and is ignored.<br>
+	 * <br>
+	 * The first ACK for a packet that was only sent once gives a round trip
+	 * time sample. When {@link #DUPLICATE_ACK_THRESHOLD} ACKs in a row repeat
+	 * the same cumulative ack, the packets after it have arrived but the
+	 * oldest one has not, and it is resent at once (fast retransmit). Until
+	 * the packets sent before a loss are all acked, an ACK that leaves one
+	 * of them the oldest shows that it was lost too, and it is resent at
+	 * once as well (a partial ACK, RFC 6582).<br>
+	 * <br>
+	 * Every ACK also carries the receive window of the other side.
+	 */
+	private void handleAck(KtnDatagram ack) {
+		if (cumulativeAckOf(ack) <= lastDataPacketSent.getSeq_nr()) {
+			updatePeerWindow(ack);
+		}
+		if (retransmitBuffer.isEmpty()) {
+			return;
+		}
+		countDuplicateAck(ack);
+		Outstanding oldest = retransmitBuffer.getFirst();
+		int unacked = retransmitBuffer.size();
+		long now = System.currentTimeMillis();
+		
+		//The sequence number of an ACK names the packet it acknowledges
+		Iterator<Outstanding> it = retransmitBuffer.iterator();
+		while (it.hasNext()) {
+			Outstanding outstanding = it.next();
+			if (outstanding.packet.getSeq_nr() == ack.getSeq_nr()) {
+				if (!outstanding.retransmitted) {
+					rttEstimator.addSample(now - outstanding.sentAt);
+				}
+				it.remove();
+				completeLater(outstanding.acked, null);
+				break;
+			}
+		}
+		while (!retransmitBuffer.isEmpty() 
+				&& cumulativeAckOf(ack) <= lastDataPacketSent.getSeq_nr()
+				&& retransmitBuffer.getFirst().packet.getSeq_nr() <= cumulativeAckOf(ack)) {
+			completeLater(retransmitBuffer.removeFirst().acked, null);
+		}
+		if (retransmitBuffer.size() < unacked) {
+			rttEstimator.resetBackoff();
+		}
+		if (retransmitBuffer.isEmpty() || retransmitBuffer.getFirst() != oldest) {
+			resendPartiallyAcked();
+			restartRetransmitTimer();
+		}
+		if (retransmitBuffer.size() < unacked) {
+			lastProgress = now;
+			int cumulative = retransmitBuffer.isEmpty() ? lastDataPacketSent.getSeq_nr()
+					: retransmitBuffer.getFirst().packet.getSeq_nr() - 1;
+			congestionControl.onAck(unacked - retransmitBuffer.size(), cumulative);
+		}
+	}
+
+	/**
+	 * Resend the oldest packet if it was sent before the loss that is being
+	 * recovered from, and not resent since; end the recovery once every
+	 * packet sent before the loss is acked. The caller must hold the send
+	 * lock.
+	 */
+	private void resendPartiallyAcked() {
+		if (recoveryPoint < 0) {
+			return;
+		}
+		if (retransmitBuffer.isEmpty() || retransmitBuffer.getFirst().packet.getSeq_nr() > recoveryPoint) {
+			recoveryPoint = -1;
+			return;
+		}
+		Outstanding oldest = retransmitBuffer.getFirst();
+		if (oldest.packet.getSeq_nr() > recoveryResent) {
+			Log.writeToLog(oldest.packet, "Partial ACK, resending", "ConnectionImpl");
+			recoveryResent = oldest.packet.getSeq_nr();
+			oldest.retransmitted = true;
+			transmit(oldest.packet);
+		}
+	}
+
+	/**
+	 * Count the ACK if it repeats the last cumulative ack, and resend the
+	 * oldest packet on the third duplicate. Only the third one triggers a
+	 * resend; further duplicates are the other packets of the same window
+	 * arriving, and are left to the timer if the resend is lost as well.
+	 * ACKs that echo no packet only update the window, and do not count.
+	 */
+	private void countDuplicateAck(KtnDatagram ack) {
+		int cumulative = cumulativeAckOf(ack);
+		if (cumulative > lastDataPacketSent.getSeq_nr() || ack.getSeq_nr() < 0) {
+			return;
+		}
+		if (cumulative != lastCumulativeAck) {
+			lastCumulativeAck = cumulative;
+			duplicateAcks = 0;
+			return;
+		}
+		Outstanding oldest = retransmitBuffer.getFirst();
+		if (oldest.packet.getSeq_nr() != cumulative + 1 || oldest.packet.getSeq_nr() == ack.getSeq_nr()) {
+			return;
+		}
+		if (++duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+			Log.writeToLog(oldest.packet, "Fast retransmit after " + duplicateAcks 
+							+ " duplicate ACKs", "ConnectionImpl");
+			fastRetransmits++;
+			congestionControl.onFastRetransmit(packetsInFlight(), lastDataPacketSent.getSeq_nr());
+			if (recoveryPoint < 0) {
+				recoveryPoint = lastDataPacketSent.getSeq_nr();
+			}
+			recoveryResent = Math.max(recoveryResent, oldest.packet.getSeq_nr());
+			oldest.retransmitted = true;
+			transmit(oldest.packet);
+			restartRetransmitTimer();
+		}
+	}
+
+	/**
+	 * Resend the oldest packet while the receive window of the other side is
+	 * closed. Its ACK tells whether the window has opened again. The packet
+	 * was not lost, so the congestion window is left alone.
+	 */
+	private void probeWindow() {
+		Outstanding oldest = retransmitBuffer.getFirst();
+		Log.writeToLog(oldest.packet, "Receive window closed, probing", "ConnectionImpl");
+		windowProbes++;
+		duplicateAcks = 0;
+		oldest.retransmitted = true;
+		transmit(oldest.packet);
+		restartRetransmitTimer();
+	}
+
+	/**
+	 * Resend the oldest unacknowledged packets, as many as the congestion
+	 * window allows, and restart the timer. The others in the window are
+	 * resent as ACKs make them the oldest, see
+	 * {@link #resendPartiallyAcked()}.
+	 */
+	private void retransmitWindow() {
+		timeoutRetransmits++;
+		duplicateAcks = 0;
+		recoveryPoint = lastDataPacketSent.getSeq_nr();
+		int resend = Math.min(retransmitBuffer.size(), effectiveWindow());
+		Log.writeToLog("Timeout, resending " + resend + " of " + retransmitBuffer.size() + " packet(s)", 
+						"ConnectionImpl");
+		for (Outstanding outstanding : retransmitBuffer) {
+			if (resend-- == 0) {
+				break;
+			}
+			outstanding.retransmitted = true;
+			recoveryResent = outstanding.packet.getSeq_nr();
+			transmit(outstanding.packet);
+		}
+		restartRetransmitTimer();
+	}
+
+	/**
+	 * Send a packet once. The packet is queued for a worker thread of the
+	 * shared timer wheel, so that the caller can start listening for the ACK
+	 * right away. One worker at a time takes the packets of a connection, so
+	 * they leave in the order they were sent; packets that overtake each
+	 * other would look like losses to fast retransmit. Failures are left to
+	 * the retransmission timer.
+	 */
+	private void transmit(KtnDatagram packet) {
+		transmitQueue.add(packet);
+		if (transmitting.compareAndSet(false, true)) {
+			TimerWheel.getShared().execute(transmitter);
+		}
+	}
+
+	/** Packets waiting for the transmitter, in the order they were sent. */
+	private final ConcurrentLinkedQueue<KtnDatagram> transmitQueue = new ConcurrentLinkedQueue<KtnDatagram>();
+	/** Set while the transmitter is queued or running. */
+	private final AtomicBoolean transmitting = new AtomicBoolean();
+
+	/** Sends the queued packets of this connection, one after the other. */
+	private final Runnable transmitter = new Runnable() {
+		public void run() {
+			do {
+				KtnDatagram packet;
+				while ((packet = transmitQueue.poll()) != null) {
+					new SendTimer(Transports.create(), packet).run();
+				}
+				transmitting.set(false);
+				//A packet queued after the last poll, but before the flag was cleared
+			} while (!transmitQueue.isEmpty() && transmitting.compareAndSet(false, true));
+		}
+	};
+
+	/**
+	 * Wait for incoming data. Data packets are acknowledged and put in order
+	 * as they arrive, see {@link #deliver(KtnDatagram)}; this method only
+	 * takes the next one from the receive buffer. When that reopens a
+	 * receive window that was closed, the sender is told so at once instead
+	 * of waiting for its next probe. A packet of coalesced messages is
+	 * returned one message per call, and a message sent in fragments is
+	 * returned once all of them have arrived. Data that arrived before the
+	 * other side closed the connection can still be received; after it, this
+	 * side closes too and an EOFException is thrown.
+	 * 
+	 * @return The received data's payload as a String.
+	 * @throws IOException
+	 *             Also if the next message is binary; it is left for
+	 *             {@link #receive(ByteBuffer)}.
+	 * @see Connection#receive()
+	 * @see AbstractConnection#receivePacket(boolean)
+	 */
+	public String receive() throws ConnectException, IOException {
+		awaitMessage();
+		synchronized (receivedMessages) {
+			if (!(receivedMessages.getFirst() instanceof String)) {
+				throw new IOException("The next message is binary, use receive(ByteBuffer)");
+			}
+			return (String)receivedMessages.removeFirst();
+		}
+	}
+
+	/**
+	 * Wait until {@link #receivedMessages} holds a message, taking packets
+	 * from the receive buffer, see {@link #receive()}.
+	 */
+	private void awaitMessage() throws ConnectException, IOException {
+		if (state != State.ESTABLISHED && state != State.CLOSE_WAIT) {
+			throw new ConnectException("No connection");
+		}
+		while (true) {
+			synchronized (receivedMessages) {
+				if (!receivedMessages.isEmpty()) {
+					return;
+				}
+			}
+			KtnDatagram received;
+			try{
+				received = receivePacket(false);
+			}catch(EOFException e){
+				//The FIN is acked already
+				close();
+				throw e;
+			}
+			if (bufferedPackets() == receiveWindowSize - 1) {
+				//The buffer was full, so the last ACK closed the window
+				sendAckQuietly(null, cumulativeAck());
+			}
+			unpack(received);
+		}
+	}
+
+	/**
+	 * Receive a message sent with {@link #send(ByteBuffer)}, copying the
+	 * bytes straight from the payload of the packet into the buffer, or from
+	 * the reassembled fragments. A message that does not fit is left for the
+	 * next call.
+	 * 
+	 * @throws IOException
+	 *             Also if the next message is text; it is left for
+	 *             {@link #receive()}.
+	 * @see BinaryConnection#receive(ByteBuffer)
+	 */
+	public int receive(ByteBuffer dst) throws ConnectException, IOException {
+		awaitMessage();
+		ByteBuffer msg;
+		synchronized (receivedMessages) {
+			if (!(receivedMessages.getFirst() instanceof ByteBuffer)) {
+				throw new IOException("The next message is text, use receive()");
+			}
+			msg = (ByteBuffer)receivedMessages.getFirst();
+			if (msg.remaining() > dst.remaining()) {
+				throw new BufferOverflowException();
+			}
+			receivedMessages.removeFirst();
+		}
+		int length = msg.remaining();
+		dst.put(msg);
+		return length;
+	}
+
+	/**
+	 * Ask for the next message. The future is completed as soon as a
+	 * message is in the receive buffer, on the thread that delivers it.
+	 * 
+	 * @see AsyncConnection#receiveAsync()
+	 */
+	public CompletableFuture<String> receiveAsync() {
+		CompletableFuture<String> received = new CompletableFuture<String>();
+		if (state != State.ESTABLISHED && state != State.CLOSE_WAIT) {
+			received.completeExceptionally(new ConnectException("No connection"));
+			return received;
+		}
+		synchronized (receivedMessages) {
+			pendingReceives.add(received);
+		}
+		dispatchMessages();
+		return received;
+	}
+
+	/**
+	 * Wait for the next message on a stream. Messages that arrived before
+	 * the other side closed the connection can still be received; after
+	 * them, this side closes too and an EOFException is thrown.
+	 * 
+	 * @see StreamConnection#receive(int)
+	 */
+	public String receive(int stream) throws ConnectException, IOException {
+		if (stream == 0) {
+			return receive();
+		}
+		Stream s = stream(stream);
+		if (state != State.ESTABLISHED && state != State.CLOSE_WAIT) {
+			throw new ConnectException("No connection");
+		}
+		String message;
+		synchronized (s) {
+			while (s.messages.isEmpty() && !s.ended) {
+				try {
+					s.wait();
+				}
+				catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting on stream " + stream);
+				}
+			}
+			if (s.messages.isEmpty()) {
+				close();
+				throw new EOFException("FIN packet received.");
+			}
+			message = s.messages.removeFirst();
+		}
+		streamTaken();
+		return message;
+	}
+
+	/**
+	 * Ask for the next message on a stream.
+	 * 
+	 * @see StreamConnection#receiveAsync(int)
+	 */
+	public CompletableFuture<String> receiveAsync(int stream) {
+		if (stream == 0) {
+			return receiveAsync();
+		}
+		Stream s = stream(stream);
+		CompletableFuture<String> received = new CompletableFuture<String>();
+		if (state != State.ESTABLISHED && state != State.CLOSE_WAIT) {
+			received.completeExceptionally(new ConnectException("No connection"));
+			return received;
+		}
+		synchronized (s) {
+			if (!s.messages.isEmpty()) {
+				completeLater(received, s.messages.removeFirst());
+			}
+			else {
+				if (s.ended) {
+					received.completeExceptionally(new EOFException("FIN packet received."));
+				}
+				else {
+					s.pendingReceives.add(received);
+				}
+				return received;
+			}
+		}
+		streamTaken();
+		return received;
+	}
+
+	/**
+	 * The application has taken a message waiting in a stream. If that
+	 * reopens a receive window that was closed, the sender is told at once.
+	 */
+	private void streamTaken() {
+		if (streamBacklog.decrementAndGet() + bufferedPackets() == receiveWindowSize - 1) {
+			try {
+				sendAckQuietly(null, cumulativeAck());
+			}
+			catch (IOException e) {
+				Log.writeToLog("Could not reopen the receive window: " + e.getMessage(), "ConnectionImpl");
+			}
+		}
+	}
+
+	/**
+	 * Handle a valid data packet on the receive dispatcher thread. Packets in
+	 * order go to the receive buffer of the application, together with the
+	 * packets they make contiguous. Packets that arrive ahead of a missing
+	 * packet are kept in the reorder buffer until the gap is filled. Every
+	 * packet is acknowledged individually with a selective ACK that also
+	 * carries the cumulative ACK and the free space in the buffer.<br>
+	 * <br>
+	 * Packets beyond the free space are dropped, but answered with an ACK
+	 * that only repeats the window. That is how a sender probing a closed
+	 * window learns whether it has opened again.
+	 */
+	private void receiveData(KtnDatagram packet) throws IOException {
+		int expected = lastValidPacketReceived.getSeq_nr() + 1;
+		int seq = packet.getSeq_nr();
+		if (seq >= expected + advertisedWindow()) {
+			Log.writeToLog(packet, "Beyond the receive window, dropping packet", "ConnectionImpl");
+			sendAckQuietly(null, cumulativeAck());
+			return;
+		}
+		if (seq > expected) {
+			//Out of order, keep it until the gap is filled
+			reorderBuffer.put(seq, packet);
+			//Its stream need not wait for packets of other streams
+			deliverToStream(packet);
+			ackQuietly(packet);
+			return;
+		}
+		if (seq < expected) {
+			//A duplicate, the ACK must have been lost
+			ackQuietly(packet);
+			return;
+		}
+		lastValidPacketReceived = packet;
+		deliverInOrder(packet);
+		boolean filledGap = false;
+		KtnDatagram next;
+		while ((next = reorderBuffer.remove(lastValidPacketReceived.getSeq_nr() + 1)) != null) {
+			lastValidPacketReceived = next;
+			deliverInOrder(next);
+			filledGap = true;
+		}
+		//Only the ACK of a packet that arrived in order may be delayed
+		if (delayedAcks && !filledGap) {
+			delayAck(packet);
+		}
+		else {
+			ackQuietly(packet);
+		}
+	}
+
+	/**
+	 * Hand a packet that is next in sequence to its stream. Packets of
+	 * stream 0 go to the receive buffer of the application.
+	 */
+	private void deliverInOrder(KtnDatagram packet) {
+		if (!deliverToStream(packet)) {
+			super.deliver(packet);
+		}
+	}
+
+	/**
+	 * Hand a packet of a stream other than 0 to its stream, and the stream's
+	 * messages that are complete to the application. A packet that was
+	 * handed over before, when it arrived ahead of a missing packet, is
+	 * ignored.
+	 * 
+	 * @return false if the packet belongs to stream 0.
+	 */
+	private boolean deliverToStream(KtnDatagram packet) {
+		if (isBinary(packet)) {
+			return false;
+		}
+		String payload = payloadOf(packet);
+		if (payload.length() == 0 || payload.charAt(0) != STREAM) {
+			return false;
+		}
+		Stream stream;
+		int number;
+		try {
+			int colon = payload.indexOf(':');
+			int end = payload.indexOf(':', colon + 1);
+			stream = stream(Integer.parseInt(payload.substring(1, colon)));
+			number = Integer.parseInt(payload.substring(colon + 1, end));
+			payload = payload.substring(end + 1);
+		}
+		catch (RuntimeException e) {
+			Log.writeToLog(packet, "Damaged stream header, dropping packet", "ConnectionImpl");
+			return true;
+		}
+		synchronized (stream) {
+			if (number < stream.receiveNumber || stream.early.containsKey(number)) {
+				return true;
+			}
+			stream.early.put(number, payload);
+			while ((payload = stream.early.remove(stream.receiveNumber)) != null) {
+				stream.receiveNumber++;
+				try {
+					String whole = reassemble(payload, stream);
+					if (whole != null) {
+						for (String message : unframe(whole)) {
+							if (stream.pendingReceives.isEmpty()) {
+								stream.messages.add(message);
+								streamBacklog.incrementAndGet();
+							}
+							else {
+								completeLater(stream.pendingReceives.removeFirst(), message);
+							}
+						}
+					}
+				}
+				catch (IOException e) {
+					Log.writeToLog(packet, "Discarding a damaged message on stream " + stream.id 
+									+ ": " + e.getMessage(), "ConnectionImpl");
+				}
+			}
+			stream.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Tell the streams other than 0 that no more messages will arrive, once
+	 * the other side has closed or the connection is gone.
+	 */
+	private void endStreams() {
+		if (disconnectRequest == null && state != State.CLOSED) {
+			return;
+		}
+		for (Stream stream : streams.values()) {
+			if (stream.id == 0) {
+				continue;
+			}
+			synchronized (stream) {
+				stream.ended = true;
+				while (stream.messages.isEmpty() && !stream.pendingReceives.isEmpty()) {
+					failLater(stream.pendingReceives.removeFirst(), new EOFException("FIN packet received."));
+				}
+				stream.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return The highest sequence number up to which every packet has been
+	 *         received.
+	 */
+	private int cumulativeAck() {
+		return lastValidPacketReceived.getSeq_nr();
+	}
+
+	/**
+	 * Send a selective ACK, but do not fail if it can not be delivered: the
+	 * other side will retransmit, and the retransmission is acked again.
+	 */
+	private void ackQuietly(KtnDatagram packet) throws IOException {
+		sendAckQuietly(packet, cumulativeAck());
+	}
+
+	/**
+	 * Send an ACK, which also replaces any delayed ACK, and log failures
+	 * instead of throwing them.
+	 * 
+	 * @param packet
+	 *            - the packet to ack, or null for a window update.
+	 */
+	private void sendAckQuietly(KtnDatagram packet, int cumulative) throws IOException {
+		synchronized (this) {
+			clearDelayedAck();
+			reportedCumulativeAck = cumulative;
+		}
+		try {
+			sendSelectiveAck(packet, cumulative);
+		}
+		catch (SocketException e) {
+			//Also covers a broken pipe when the other side stops listening
+			Log.writeToLog("Could not deliver ACK: " + e.getMessage(), "ConnectionImpl");
+		}
+	}
+
+	/**
+	 * Delay the ACK of an in-order packet. The ACK is sent when a second
+	 * packet arrives or the timer expires, whichever comes first.
+	 */
+	private void delayAck(KtnDatagram packet) {
+		int cumulative = cumulativeAck();
+		synchronized (this) {
+			pendingAck = packet;
+			pendingCumulativeAck = cumulative;
+			if (++unackedPackets < 2) {
+				if (delayedAckTimer == null) {
+					delayedAckTimer = TimerWheel.getShared().schedule(new Runnable() {
+						public void run() {
+							flushDelayedAck();
+						}
+					}, DELAYED_ACK_TIMEOUT);
+				}
+				return;
+			}
+		}
+		flushDelayedAck();
+	}
+
+	/** Send the delayed ACK at once, if there is one. */
+	private void flushDelayedAck() {
+		KtnDatagram packet;
+		int cumulative;
+		synchronized (this) {
+			packet = pendingAck;
+			cumulative = pendingCumulativeAck;
+			clearDelayedAck();
+		}
+		if (packet != null) {
+			try {
+				sendAckQuietly(packet, cumulative);
+			}
+			catch (IOException e) {
+				Log.writeToLog(packet, "Could not deliver delayed ACK", "ConnectionImpl");
+			}
+		}
+	}
+
+	/** Forget the delayed ACK, as a newer ack has been sent. */
+	private synchronized void clearDelayedAck() {
+		pendingAck = null;
+		unackedPackets = 0;
+		if (delayedAckTimer != null) {
+			delayedAckTimer.cancel();
+			delayedAckTimer = null;
+		}
+	}
+
+	/**
+	 * Flagged packets are events of the state machine, see
+	 * {@link #classify(KtnDatagram)}. Data packets are handled as soon as
+	 * they arrive, so that they are acknowledged also while the application
+	 * is busy, see {@link #receiveData(KtnDatagram)}. Packets that fail the
+	 * checksum are dropped, and so are packets from other ports than the one
+	 * of the other side.<br>
+	 * <br>
+	 * Data packets from the other side may piggyback a cumulative ack and a
+	 * receive window, in the payload after {@link #ACKED} where the checksum
+	 * covers them. The packet is left as it is; the ack is read from the
+	 * payload, and skipped wherever the payload is read, see
+	 * {@link #payloadOf(KtnDatagram)}. When it tells more than before, it is
+	 * handed to the send window as an ACK of its own. It has no selective
+	 * part, and gives no round trip time sample. The ack field of a data
+	 * packet without such a payload is not used. The first data packet also
+	 * completes a handshake whose last ACK was lost.
+	 */
+	void deliver(KtnDatagram packet) {
+		if (packet.getFlag() != Flag.NONE) {
+			Event event = classify(packet);
+			if (event != null) {
+				fireQuietly(event, packet);
+			}
+			dispatchMessages();
+			endStreams();
+			return;
+		}
+		if (!isValid(packet)) {
+			//Probably indicates a checksum mismatch
+			Log.writeToLog(packet, "Invalid data packet, dropping it", "ConnectionImpl");
+			return;
+		}
+		if (lastValidPacketReceived == null || packet.getSrc_port() != remotePort) {
+			Log.writeToLog(packet, "Data packet outside a connection, dropping it", "ConnectionImpl");
+			return;
+		}
+		KtnDatagram ack = null;
+		try {
+			if (isBinary(packet)) {
+				byte[] payload = packet.getPayloadAsBytes();
+				if ((payload[BINARY_HEADER] & BINARY_ACKED) != 0) {
+					ack = piggybackedAck(packet, ByteBuffer.wrap(payload).getInt(BINARY_HEADER + 1));
+				}
+			}
+			else {
+				String payload = (String)packet.getPayload();
+				if (payload.length() > 0 && payload.charAt(0) == ACKED) {
+					ack = piggybackedAck(packet, Integer.parseInt(payload.substring(1, payload.indexOf(':'))));
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			Log.writeToLog(packet, "Damaged piggybacked ack, dropping packet", "ConnectionImpl");
+			return;
+		}
+		if (state == State.SYN_RCVD) {
+			fireQuietly(Event.ACK, ack);
+		}
+		if (ack != null && lastDataPacketSent != null && ack.getAck() != piggybackedAck
+				&& cumulativeAckOf(ack) >= piggybackedCumulativeAck) {
+			piggybackedAck = ack.getAck();
+			piggybackedCumulativeAck = cumulativeAckOf(ack);
+			fireQuietly(Event.ACK, ack);
+		}
+		try {
+			receiveData(packet);
+		}
+		catch (IOException e) {
+			Log.writeToLog(packet, "Could not handle data packet: " + e.getMessage(), "ConnectionImpl");
+		}
+		dispatchMessages();
+	}
+
+	/**
+	 * @return An ACK without selective part, from the ack piggybacked on a
+	 *         data packet.
+	 */
+	private static KtnDatagram piggybackedAck(KtnDatagram packet, int ackField) {
+		KtnDatagram ack = new KtnDatagram();
+		ack.setSrc_addr(packet.getSrc_addr());
+		ack.setSrc_port(packet.getSrc_port());
+		ack.setDest_addr(packet.getDest_addr());
+		ack.setDest_port(packet.getDest_port());
+		ack.setFlag(Flag.ACK);
+		ack.setSeq_nr(-1);
+		ack.setAck(ackField);
+		ack.setPayload(null);
+		ack.setChecksum(ack.calculateChecksum());
+		return ack;
+	}
+
+	/**
+	 * @return The payload of a data packet, after the ack piggybacked on it
+	 *         if there is one.
+	 */
+	private static String payloadOf(KtnDatagram packet) {
+		String payload = (String)packet.getPayload();
+		if (payload.length() > 0 && payload.charAt(0) == ACKED) {
+			return payload.substring(payload.indexOf(':') + 1);
+		}
+		return payload;
+	}
+
+	/**
+	 * Hand the messages in the receive buffer to the message listener, if
+	 * there is one, or else to the calls of receiveAsync() that wait for
+	 * them. If the other side has closed the connection, start closing this
+	 * side too, once.
+	 */
+	private void dispatchMessages() {
+		final MessageListener listener = messageListener;
+		synchronized (receivedMessages) {
+			if (listener == null && pendingReceives.isEmpty()) {
+				return;
+			}
+			boolean closedByPeer = false;
+			boolean reopened = false;
+			//Without a listener, packets are only taken for waiting calls,
+			//so that the receive window still holds back the sender
+			while (listener != null || receivedMessages.size() < pendingReceives.size()) {
+				KtnDatagram packet;
+				try {
+					packet = pollPacket();
+				}
+				catch (EOFException e) {
+					closedByPeer = true;
+					break;
+				}
+				if (packet == null) {
+					break;
+				}
+				if (bufferedPackets() == receiveWindowSize - 1) {
+					reopened = true;
+				}
+				try {
+					unpack(packet);
+				}
+				catch (IOException e) {
+					Log.writeToLog(packet, "Discarding a damaged message: " + e.getMessage(), "ConnectionImpl");
+				}
+			}
+			if (reopened) {
+				//The buffer was full, so the last ACK closed the window
+				try {
+					sendAckQuietly(null, cumulativeAck());
+				}
+				catch (IOException e) {
+					Log.writeToLog("Could not reopen the receive window: " + e.getMessage(), "ConnectionImpl");
+				}
+			}
+			if (listener != null) {
+				startListener();
+			}
+			else {
+				while (!receivedMessages.isEmpty() && !pendingReceives.isEmpty()) {
+					completeLater(pendingReceives.removeFirst(), text(receivedMessages.removeFirst()));
+				}
+			}
+			if (closedByPeer) {
+				while (!pendingReceives.isEmpty()) {
+					failLater(pendingReceives.removeFirst(), new EOFException("FIN packet received."));
+				}
+			}
+			if (!closedByPeer || closeDispatched) {
+				return;
+			}
+			closeDispatched = true;
+		}
+		//Closing does not wait, so it is done on this thread
+		try {
+			close();
+		}
+		catch (IOException e) {
+			Log.writeToLog("Could not close: " + e.getMessage(), "ConnectionImpl");
+		}
+		if (listener != null) {
+			synchronized (receivedMessages) {
+				listenerClosePending = true;
+				startListener();
+			}
+		}
+	}
+
+	/**
+	 * Start a worker thread that hands the received messages to the
+	 * listener, unless one is running already. The caller must hold the
+	 * receivedMessages monitor.
+	 */
+	private void startListener() {
+		if (listenerRunning || messageListener == null || (receivedMessages.isEmpty() && !listenerClosePending)) {
+			return;
+		}
+		listenerRunning = true;
+		TimerWheel.getShared().execute(new Runnable() {
+			public void run() {
+				runListener();
+			}
+		});
+	}
+
+	/**
+	 * Take the received messages under the lock, and call the listener
+	 * after releasing it, until there are no more. Only one thread at a time
+	 * runs this, so the listener gets the messages in order.
+	 */
+	private void runListener() {
+		while (true) {
+			MessageListener listener = messageListener;
+			List<Object> messages;
+			boolean closed;
+			synchronized (receivedMessages) {
+				if (listener == null || (receivedMessages.isEmpty() && !listenerClosePending)) {
+					listenerRunning = false;
+					return;
+				}
+				messages = new ArrayList<Object>(receivedMessages);
+				receivedMessages.clear();
+				closed = listenerClosePending;
+				listenerClosePending = false;
+			}
+			for (Object message : messages) {
+				try {
+					listener.messageReceived(this, text(message));
+				}
+				catch (RuntimeException e) {
+					Log.writeToLog("Message listener failed: " + e, "ConnectionImpl");
+				}
+			}
+			if (closed) {
+				try {
+					listener.connectionClosed(this);
+				}
+				catch (RuntimeException e) {
+					Log.writeToLog("Message listener failed: " + e, "ConnectionImpl");
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Close the connection, without waiting. Messages that are queued or in
+	 * the send window are delivered first, then the FIN is sent; the FIN
+	 * exchange and TIME_WAIT run on the timer wheel and the threads that
+	 * receive the packets. To learn when the connection is closed, use
+	 * {@link #closeAsync()}. A JVM that exits while connections are closing
+	 * waits for them, at most {@link #LINGER_TIMEOUT} milliseconds.
+	 * 
+	 * @see Connection#close()
+	 */
+	public void close() throws IOException {
+		beginClose();
+		pendingClose();
+	}
+
+	/**
+	 * Start closing the connection, and return a future that is completed
+	 * when the other side has answered with a FIN of its own or has acked
+	 * the FIN, depending on which side closed first.
+	 * 
+	 * @see AsyncConnection#closeAsync()
+	 */
+	public CompletableFuture<Void> closeAsync() {
+		try {
+			beginClose();
+		}
+		catch (IOException e) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return pendingClose();
+	}
+
+	/**
+	 * @return The future of the close that has begun. It is also waited
+	 *         for when the JVM exits.
+	 */
+	private CompletableFuture<Void> pendingClose() {
+		synchronized (stateLock) {
+			if (closeFuture == null) {
+				closeFuture = new CompletableFuture<Void>();
+				lingerAtExit(closeFuture);
+			}
+			CompletableFuture<Void> closed = closeFuture;
+			completeStateFutures();
+			return closed;
+		}
+	}
+
+	/**
+	 * Make the JVM wait for a close when it exits, as the FIN exchange runs
+	 * on daemon threads. Installs the shutdown hook that waits on first use.
+	 */
+	private static synchronized void lingerAtExit(final CompletableFuture<Void> closed) {
+		if (lingering == null) {
+			lingering = Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<Void>, Boolean>());
+			Runtime.getRuntime().addShutdownHook(new Thread("ConnectionImpl linger") {
+				public void run() {
+					CompletableFuture<?>[] closes = lingering.toArray(new CompletableFuture<?>[0]);
+					try {
+						CompletableFuture.allOf(closes).get(LINGER_TIMEOUT, TimeUnit.MILLISECONDS);
+					}
+					catch (Exception e) {
+						//Timed out, or a close failed: exit anyway
+					}
+				}
+			});
+		}
+		lingering.add(closed);
+		closed.whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void result, Throwable failure) {
+				lingering.remove(closed);
+			}
+		});
+	}
+
+	/** Queue the last messages, and fire {@link Event#CLOSE}. */
+	private void beginClose() throws IOException {
+		flushDelayedAck();
+		if (canSend()) {
+			synchronized (sendLock) {
+				sendCoalesced();
+			}
+		}
+		fire(Event.CLOSE, null);
+	}
+
+	/**
+	 * @return true while a close that has begun is not done: until the FIN
+	 *         of this side is acked and, if this side closed first, the FIN
+	 *         of the other side has arrived.
+	 */
+	private boolean isClosing() {
+		return state == State.ESTABLISHED || state == State.CLOSE_WAIT || state == State.FIN_WAIT_1 
+				|| state == State.FIN_WAIT_2 || state == State.LAST_ACK;
+	}
+
+	/**
+	 * @return true if data can be sent: the connection is established, or
+	 *         only the other side has closed it.
+	 */
+	private boolean canSend() {
+		return state == State.ESTABLISHED || state == State.CLOSE_WAIT;
+	}
+
+	/**
+	 * Check that the application may send a message: the data already
+	 * queued is still sent while closing, but nothing after close().
+	 * 
+	 * @throws ConnectException
+	 *             If the connection is not established, or is closing.
+	 */
+	private void checkSendable() throws ConnectException {
+		if (closing) {
+			throw new ConnectException("Cannot send on a closed connection");
+		}
+		if (!canSend()) {
+			throw new ConnectException("Cannot send without an established connection");
+		}
+	}
+
+	/**
+	 * Wait until the connection leaves the given state. The caller must hold
+	 * the state lock.
+	 */
+	private void awaitStateChange(State current) throws InterruptedIOException {
+		while (state == current) {
+			try {
+				stateLock.wait();
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted in state " + state);
+			}
+		}
+	}
+
+	/**
+	 * Look up an event in {@link #PROTOCOL} and take the transition. The
+	 * state is changed before the action is carried out, so that an action
+	 * may fire further events; if the action fails, the connection goes back
+	 * to the state it came from and the failure is thrown. Threads waiting
+	 * for a new state are woken.
+	 * 
+	 * @param event
+	 *            - the event.
+	 * @param packet
+	 *            - the packet that caused it, or null.
+	 * @throws IOException
+	 *             If the action failed.
+	 */
+	private void fire(Event event, KtnDatagram packet) throws IOException {
+		synchronized (stateLock) {
+			State from = state;
+			StateMachine.Transition<Action> transition = PROTOCOL.get(from, event);
+			if (transition == null) {
+				Log.writeToLog("Ignoring " + event + " in state " + from, "ConnectionImpl");
+				return;
+			}
+			if (transition.next != from) {
+				Log.writeToLog(from + " -> " + transition.next + " on " + event, "ConnectionImpl");
+			}
+			state = transition.next;
+			try {
+				perform(transition.action, packet);
+			}
+			catch (IOException e) {
+				if (state == transition.next) {
+					state = from;
+				}
+				throw e;
+			}
+			finally {
+				stateLock.notifyAll();
+				completeStateFutures();
+			}
+		}
+	}
+
+	/**
+	 * Complete the futures of connectAsync() and closeAsync() once the state
+	 * gives their outcome. The caller must hold the state lock.
+	 */
+	private void completeStateFutures() {
+		if (connectFuture != null && state != State.SYN_SENT) {
+			if (state == State.ESTABLISHED) {
+				completeLater(connectFuture, null);
+			}
+			else {
+				failLater(connectFuture, new SocketTimeoutException("Could not establish connection!"));
+			}
+			connectFuture = null;
+		}
+		if (closeFuture != null && !isClosing()) {
+			if (closeFailure != null) {
+				failLater(closeFuture, closeFailure);
+			}
+			else {
+				completeLater(closeFuture, null);
+			}
+			closeFuture = null;
+		}
+	}
+
+	/**
+	 * Complete a future on a worker of the timer wheel, so that the actions
+	 * that depend on it do not run while this connection holds a lock.
+	 * 
+	 * @param future
+	 *            - the future, or null.
+	 */
+	private static <T> void completeLater(final CompletableFuture<T> future, final T value) {
+		if (future == null) {
+			return;
+		}
+		TimerWheel.getShared().execute(new Runnable() {
+			public void run() {
+				future.complete(value);
+			}
+		});
+	}
+
+	/** Complete a future exceptionally, like {@link #completeLater(CompletableFuture, Object)}. */
+	private static void failLater(final CompletableFuture<?> future, final Throwable failure) {
+		if (future == null) {
+			return;
+		}
+		TimerWheel.getShared().execute(new Runnable() {
+			public void run() {
+				future.completeExceptionally(failure);
+			}
+		});
+	}
+
+	/**
+	 * Fire an event that nobody waits for the outcome of, such as a packet
+	 * or a timer, and log a failure.
+	 */
+	private void fireQuietly(Event event, KtnDatagram packet) {
+		try {
+			fire(event, packet);
+		}
+		catch (IOException e) {
+			Log.writeToLog("Could not handle " + event + " in state " + state + ": " + e.getMessage(), 
+							"ConnectionImpl");
+		}
+	}
+
+	/**
+	 * @return The event a valid flagged packet from the other side is, or
+	 *         null if it is to be dropped. An ACK is {@link Event#FIN_ACK} if
+	 *         it names the FIN of this side.
+	 */
+	private Event classify(KtnDatagram packet) {
+		if (!isValid(packet)) {
+			Log.writeToLog(packet, "Invalid internal packet, dropping it", "ConnectionImpl");
+			return null;
+		}
+		if (state != State.LISTEN && state != State.SYN_SENT && packet.getSrc_port() != remotePort) {
+			Log.writeToLog(packet, "Packet from another port, dropping it", "ConnectionImpl");
+			return null;
+		}
+		switch (packet.getFlag()) {
+		case SYN:
+			return Event.SYN;
+		case SYN_ACK:
+			return Event.SYN_ACK;
+		case FIN:
+			return Event.FIN;
+		case ACK:
+			if ((state == State.FIN_WAIT_1 || state == State.LAST_ACK) 
+					&& packet.getSeq_nr() == disconnectSeqNo) {
+				return Event.FIN_ACK;
+			}
+			return Event.ACK;
+		default:
+			return null;
+		}
+	}
+
+	/** Carry out the action of a transition. The caller holds the state lock. */
+	private void perform(Action action, KtnDatagram packet) throws IOException {
+		switch (action) {
+		case SEND_SYN:
+			synchronized (sendLock) {
+				closing = false;
+				closeFailure = null;
+			}
+			holdPort();
+			startReceiving();
+			handshakePacket = constructInternalPacket(Flag.SYN);
+			Log.writeToLog(handshakePacket, "Sending SYN", "ConnectionImpl");
+			sendHandshake();
+			break;
+		case COMPLETE_CONNECT:
+			completeHandshake(packet);
+			//Connect to the new connection
+			remoteAddress = packet.getSrc_addr();
+			remotePort = packet.getSrc_port();
+			lastValidPacketReceived = packet;
+			//If the ACK is lost, the SYN_ACK is resent and acked again
+			sendAckQuietly(packet, packet.getSeq_nr());
+			break;
+		case START_LISTENING:
+			holdPort();
+			startReceiving();
+			halfOpen = new ConcurrentHashMap<String, ConnectionImpl>();
+			acceptQueue = new LinkedBlockingQueue<ConnectionImpl>(backlog);
+			break;
+		case SPAWN:
+			spawn(packet);
+			break;
+		case SEND_SYN_ACK:
+			lastValidPacketReceived = packet;
+			startReceiving();
+			handshakePacket = constructInternalPacket(Flag.SYN_ACK);
+			handshakePacket.setAck(encodeAck(packet.getSeq_nr(), advertisedWindow()));
+			sendHandshake();
+			break;
+		case COMPLETE_ACCEPT:
+			if (listener.state != State.LISTEN) {
+				throw new SocketException("Not listening");
+			}
+			if (!listener.acceptQueue.offer(this)) {
+				//Stays in SYN_RCVD and resends the SYN_ACK
+				listener.backlogDrops++;
+				throw new SocketException("Accept queue full");
+			}
+			completeHandshake(packet);
+			listener.halfOpen.remove(remoteKey(remoteAddress, remotePort));
+			break;
+		case HANDLE_ACK:
+			ackReceived(packet);
+			break;
+		case REACK:
+			//The ACK of this side was lost
+			sendAckQuietly(packet, packet.getSeq_nr());
+			break;
+		case BEGIN_CLOSE:
+			boolean drained;
+			synchronized (sendLock) {
+				closing = true;
+				lastProgress = System.currentTimeMillis();
+				drained = retransmitBuffer.isEmpty() && sendingStreams.isEmpty();
+			}
+			if (drained) {
+				fire(Event.DRAINED, null);
+			}
+			break;
+		case SEND_FIN:
+			handshakePacket = constructInternalPacket(Flag.FIN);
+			disconnectSeqNo = handshakePacket.getSeq_nr();
+			sendHandshake();
+			break;
+		case AWAIT_FIN:
+			protocolRetries = 0;
+			armTimer(rttEstimator.getReceiveTimeout());
+			break;
+		case PEER_CLOSED:
+			disconnectRequest = packet;
+			sendAckQuietly(packet, packet.getSeq_nr());
+			endOfStream();
+			if (closing) {
+				fire(Event.CLOSE, null);
+			}
+			break;
+		case ENTER_TIME_WAIT:
+			disconnectRequest = packet;
+			sendAckQuietly(packet, packet.getSeq_nr());
+			endOfStream();
+			protocolRetries = 0;
+			armTimer(TIME_WAIT_DELAY);
+			break;
+		case RESEND:
+			protocolRetries++;
+			rttEstimator.backoff();
+			sendHandshake();
+			break;
+		case ABORT:
+			//The handshake failed
+			cancelTimer();
+			stopReceiving();
+			releasePort();
+			if (listener != null) {
+				listener.halfOpen.remove(remoteKey(remoteAddress, remotePort), this);
+			}
+			break;
+		case RELEASE:
+			cancelTimer();
+			discardUnsent();
+			stopReceiving();
+			releasePort();
+			//Wakes a thread still waiting in receive()
+			endOfStream();
+			if (acceptQueue != null) {
+				//Connections that were never accepted are closed as well
+				ConnectionImpl pending;
+				while ((pending = acceptQueue.poll()) != null) {
+					if (pending != this) {
+						pending.closeAsync();
+					}
+				}
+				acceptQueue.offer(this);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Answer a SYN on the listening port: hand it to the connection spawned
+	 * for the remote address and port, or spawn one on a free port if there
+	 * is none and the SYN queue has room. A repeated SYN makes the connection
+	 * resend its SYN_ACK.
+	 */
+	private void spawn(KtnDatagram syn) throws IOException {
+		String key = remoteKey(syn.getSrc_addr(), syn.getSrc_port());
+		ConnectionImpl child = halfOpen.get(key);
+		if (child == null) {
+			if (halfOpen.size() >= backlog) {
+				Log.writeToLog(syn, "SYN queue full, dropping SYN", "ConnectionImpl");
+				backlogDrops++;
+				return;
+			}
+			int port = PortAllocator.getShared().allocate();
+			if (port < 0) {
+				throw new SocketException("No free port for a new connection");
+			}
+			child = new ConnectionImpl(port);
+			child.portHeld = true;
+			child.listener = this;
+			child.remoteAddress = syn.getSrc_addr();
+			child.remotePort = syn.getSrc_port();
+			halfOpen.put(key, child);
+		}
+		try {
+			child.fire(Event.SYN, syn);
+		}
+		catch (IOException e) {
+			halfOpen.remove(key, child);
+			child.releasePort();
+			throw e;
+		}
+	}
+
+	private static String remoteKey(String address, int port) {
+		return address + ":" + port;
+	}
+
+	/**
+	 * The other side has answered the SYN or SYN_ACK: stop resending it, and
+	 * take a round trip time sample if it was sent only once. The answer is
+	 * null when it was a data packet without a piggybacked ack, whose ack
+	 * field tells nothing to be trusted about the window.
+	 */
+	private void completeHandshake(KtnDatagram answer) {
+		cancelTimer();
+		if (protocolRetries == 0) {
+			rttEstimator.addSample(System.currentTimeMillis() - handshakeSentAt);
+		}
+		if (answer != null) {
+			updatePeerWindow(answer);
+		}
+	}
+
+	/**
+	 * Send {@link #handshakePacket} and arm the timer that resends it. A
+	 * failed send is left to the timer as well.
+	 */
+	private void sendHandshake() {
+		handshakeSentAt = System.currentTimeMillis();
+		try {
+			simplySendPacket(handshakePacket);
+		}
+		catch (ClException e) {
+			Log.writeToLog(handshakePacket, "Could not send: " + e.getMessage(), "ConnectionImpl");
+		}
+		catch (IOException e) {
+			Log.writeToLog(handshakePacket, "Could not send: " + e.getMessage(), "ConnectionImpl");
+		}
+		armTimer(rttEstimator.getTimeout());
+	}
+
+	/**
+	 * Fire {@link Event#TIMEOUT} after the given delay, or
+	 * {@link Event#GIVE_UP} once {@link #HANDSHAKE_RETRIES} resends have
+	 * been made. Replaces the timer of the previous state. The caller must
+	 * hold the state lock.
+	 */
+	private void armTimer(long delay) {
+		cancelTimer();
+		final int generation = timerGeneration;
+		protocolTimer = TimerWheel.getShared().schedule(new Runnable() {
+			public void run() {
+				synchronized (stateLock) {
+					if (generation != timerGeneration) {
+						return;
+					}
+					protocolTimer = null;
+					fireQuietly(protocolRetries < HANDSHAKE_RETRIES ? Event.TIMEOUT : Event.GIVE_UP, null);
+				}
+				//Receivers learn that no more data will come
+				dispatchMessages();
+				endStreams();
+			}
+		}, delay);
+	}
+
+	/** Stop the timer of the current state. The caller must hold the state lock. */
+	private void cancelTimer() {
+		timerGeneration++;
+		if (protocolTimer != null) {
+			protocolTimer.cancel();
+			protocolTimer = null;
+		}
+	}
+
+	/**
+	 * Handle an ACK for data, or the ack piggybacked on a data packet. Wakes
+	 * the threads waiting for room in the send window, sends the coalesced
+	 * messages once no packet is in flight, and lets a closing connection
+	 * send its FIN once the window is empty.
+	 */
+	private void ackReceived(KtnDatagram ack) throws IOException {
+		boolean drained;
+		synchronized (sendLock) {
+			if (lastDataPacketSent != null) {
+				handleAck(ack);
+			}
+			else {
+				updatePeerWindow(ack);
+			}
+			if (coalescing && packetsInFlight() == 0) {
+				flushCoalesced();
+			}
+			pump();
+			sendLock.notifyAll();
+			drained = closing && retransmitBuffer.isEmpty() && sendingStreams.isEmpty();
+		}
+		if (drained) {
+			fire(Event.DRAINED, null);
+		}
+	}
+
+	/**
+	 * Forget the data that has not been sent or acked: the other side will
+	 * not take any more of it.
+	 */
+	private void discardUnsent() {
+		synchronized (sendLock) {
+			abandonPackets("Connection closed before the message was acked");
+			restartRetransmitTimer();
+		}
+		synchronized (coalesceBuffer) {
+			coalesceBuffer.clear();
+			coalescedChars = 0;
+		}
+	}
+
+	/**
+	 * Empty the send window and the unsent packets, failing the futures of
+	 * sendAsync() that wait for them, and wake the senders. The caller must
+	 * hold the send lock.
+	 */
+	private void abandonPackets(String reason) {
+		for (Outstanding outstanding : retransmitBuffer) {
+			failLater(outstanding.acked, new ConnectException(reason));
+		}
+		for (Stream stream : sendingStreams) {
+			for (Unsent unsent : stream.unsent) {
+				failLater(unsent.acked, new ConnectException(reason));
+			}
+			stream.unsent.clear();
+		}
+		retransmitBuffer.clear();
+		sendingStreams.clear();
+		sendLock.notifyAll();
+	}
 
 	/**
 	 * Test a packet for transmission errors. This function should only called
@@ -0,0 +1,126 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import no.ntnu.fp.net.admin.Log;
+
+/**
+ * Measures how fast connections are torn down. It opens a number of
+ * connections on the UDP transport, closes the client side of all of them
+ * from one thread, and prints how fast close() returns and how fast the
+ * disconnects complete: when the server side has acked the FIN of the
+ * client and had its own FIN acked. Then it waits out TIME_WAIT and prints
+ * the threads and the ports that are left.<br>
+ * <br>
+ * Usage: DisconnectBenchmark [connections] [port]
+ */
+public class DisconnectBenchmark {
+
+    /** First local port tried by the client side. */
+    private static final int FIRST_CLIENT_PORT = 40000;
+    /** Longer than TIME_WAIT. */
+    private static final long LINGER_MILLIS = 3000;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        final int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : 5556;
+
+        Log.setLogName("DisconnectBenchmark");
+        Transports.setType(Transports.UDP);
+
+        final CountDownLatch accepted = new CountDownLatch(connections);
+        final CountDownLatch disconnected = new CountDownLatch(connections);
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                serve(port, accepted, disconnected);
+            }
+        }, "DisconnectBenchmark-server");
+        server.setDaemon(true);
+        server.start();
+
+        List<Connection> open = connect(InetAddress.getByName("localhost"), port, connections);
+        accepted.await();
+        report("open", connections);
+
+        long start = System.currentTimeMillis();
+        for (Connection connection : open) {
+            connection.close();
+        }
+        long returned = System.currentTimeMillis();
+        disconnected.await();
+        long done = System.currentTimeMillis();
+        System.out.println(connections + " close() calls returned in " + (returned - start) + " ms, "
+                + perSecond(connections, returned - start) + " per second");
+        System.out.println(connections + " disconnects completed in " + (done - start) + " ms, "
+                + perSecond(connections, done - start) + " per second");
+
+        Thread.sleep(LINGER_MILLIS);
+        report("after TIME_WAIT", 0);
+        System.out.println(PortAllocator.getShared());
+        System.exit(0);
+    }
+
+    /**
+     * Accept connections. A connection counts as disconnected when its own
+     * close is done, which the listener starts when the FIN arrives.
+     */
+    private static void serve(int port, CountDownLatch accepted, final CountDownLatch disconnected) {
+        MessageListener closer = new MessageListener() {
+            public void messageReceived(Connection connection, String message) {
+            }
+
+            public void connectionClosed(Connection connection) {
+                ((ConnectionImpl)connection).closeAsync().thenRun(new Runnable() {
+                    public void run() {
+                        disconnected.countDown();
+                    }
+                });
+            }
+        };
+        ConnectionImpl listening = new ConnectionImpl(port);
+        listening.setBacklog((int)accepted.getCount());
+        while (accepted.getCount() > 0) {
+            try {
+                ConnectionImpl connection = (ConnectionImpl)listening.accept();
+                connection.setMessageListener(closer);
+                accepted.countDown();
+            }
+            catch (IOException e) {
+                // The handshake failed, the client tries again.
+            }
+        }
+    }
+
+    /** Open connections. */
+    private static List<Connection> connect(InetAddress host, int port, int connections) {
+        List<Connection> open = new ArrayList<Connection>(connections);
+        int localPort = FIRST_CLIENT_PORT;
+        while (open.size() < connections) {
+            ConnectionImpl connection = new ConnectionImpl(localPort++);
+            try {
+                connection.connect(host, port);
+                open.add(connection);
+            }
+            catch (IOException e) {
+                // The local port is taken or the handshake failed: next port.
+            }
+        }
+        return open;
+    }
+
+    private static long perSecond(int count, long millis) {
+        return count * 1000L / Math.max(1, millis);
+    }
+
+    private static void report(String what, int connections) {
+        System.out.println(what + ": " + connections + " connections, " + threads.getThreadCount() + " threads");
+    }
+}
@@ -0,0 +1,32 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Receives the messages of a connection as they arrive, instead of a thread
+ * waiting in {@link Connection#receive()}. The methods are called one at a
+ * time, in order, on a worker thread of the {@link TimerWheel}, and not
+ * while the connection holds a lock. A listener that blocks only holds back
+ * the messages of its own connection.
+ *
+ * @see ConnectionImpl#setMessageListener(MessageListener)
+ */
+public interface MessageListener {
+
+    /**
+     * A message has arrived.
+     *
+     * @param connection
+     *            The connection it arrived on.
+     * @param message
+     *            The message.
+     */
+    void messageReceived(Connection connection, String message);
+
+    /**
+     * The other side has closed the connection, and this side has started
+     * closing too. No more messages will arrive.
+     *
+     * @param connection
+     *            The connection that was closed.
+     */
+    void connectionClosed(Connection connection);
+}
@@ -0,0 +1,96 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Congestion control in the style of TCP NewReno (RFC 5681, RFC 6582). The
+ * window starts at {@link #INITIAL_WINDOW} packets and grows by one packet
+ * per ACKed packet (slow start) until it reaches the slow start threshold,
+ * and from there by one packet per window (congestion avoidance). A loss
+ * found by duplicate ACKs halves the window; an expired timer sets the
+ * threshold to half the flight size and starts over from one packet. When
+ * the timer expires again before any ACK, the resent packet was lost as
+ * well; that is the same loss, and the threshold is kept (RFC 5681, 3.1),
+ * instead of being halved down to the minimum.<br>
+ * <br>
+ * After a fast retransmit the connection is in recovery until everything
+ * that was in flight at the time is acked. Further losses in that window
+ * are part of the same congestion event and do not shrink the window
+ * again.
+ */
+public class NewRenoCongestionControl implements CongestionControl {
+
+    /** Window at the start of the connection, in packets. */
+    public static final int INITIAL_WINDOW = 2;
+
+    /** Slow start threshold at the start of the connection, in packets. */
+    public static final int INITIAL_THRESHOLD = 64;
+
+    /** The window is never shrunk below this on a loss, in packets. */
+    private static final int MIN_THRESHOLD = 2;
+
+    private volatile int window = INITIAL_WINDOW;
+    private int threshold = INITIAL_THRESHOLD;
+    /** Packets ACKed since the window last grew in congestion avoidance. */
+    private int ackedInWindow;
+    /** Last packet sent when recovery started, or -1 outside recovery. */
+    private int recover = -1;
+    /** Set by a timeout, cleared by the next ACK. */
+    private boolean timedOut;
+
+    public int getWindow() {
+        return window;
+    }
+
+    /** @return The slow start threshold, in packets. */
+    public synchronized int getThreshold() {
+        return threshold;
+    }
+
+    /** @return true while the window grows exponentially. */
+    public synchronized boolean isSlowStart() {
+        return window < threshold;
+    }
+
+    public synchronized void onAck(int ackedPackets, int cumulativeAck) {
+        timedOut = false;
+        if (recover >= 0) {
+            if (cumulativeAck < recover) {
+                return; // partial ack, still recovering
+            }
+            recover = -1;
+        }
+        if (window < threshold) {
+            window = Math.min(window + ackedPackets, threshold);
+        }
+        else {
+            ackedInWindow += ackedPackets;
+            if (ackedInWindow >= window) {
+                ackedInWindow -= window;
+                window++;
+            }
+        }
+    }
+
+    public synchronized void onFastRetransmit(int inFlight, int highestSent) {
+        if (recover >= 0) {
+            return;
+        }
+        threshold = Math.max(inFlight / 2, MIN_THRESHOLD);
+        window = threshold;
+        ackedInWindow = 0;
+        recover = highestSent;
+    }
+
+    public synchronized void onTimeout(int inFlight, int highestSent) {
+        if (!timedOut) {
+            threshold = Math.max(inFlight / 2, MIN_THRESHOLD);
+        }
+        timedOut = true;
+        window = 1;
+        ackedInWindow = 0;
+        recover = -1;
+    }
+
+    public String toString() {
+        return "NewReno[cwnd=" + window + ", ssthresh=" + getThreshold() + "]";
+    }
+}
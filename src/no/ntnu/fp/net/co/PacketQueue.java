@@ -0,0 +1,117 @@
+package no.ntnu.fp.net.co;
+
+import java.util.ArrayDeque;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Bounded queue of datagrams, guarded by its own monitor. A connection keeps
+ * one queue per kind of packet, so that a data packet only wakes a thread
+ * waiting for data, and an ACK only a thread waiting for ACKs, instead of
+ * every thread waiting on the connection.<br>
+ * <br>
+ * Waiting is done outside the queue: a consumer reads {@link #epoch()},
+ * checks everything it waits for, and then calls
+ * {@link #await(long, long)}. {@link #offer(KtnDatagram)} wakes a single
+ * waiting thread, {@link #wakeAll()} wakes all of them. A wakeup that comes
+ * between reading the epoch and waiting is not lost, as await() returns at
+ * once when the epoch has changed. A woken consumer must poll the queue
+ * before it gives up on its deadline, so that the wakeup is not wasted.
+ *
+ * @see AbstractConnection#deliver(KtnDatagram)
+ */
+public class PacketQueue {
+
+    private final ArrayDeque<KtnDatagram> packets;
+    private final int capacity;
+
+    /** Incremented on every wakeup. */
+    private long epoch;
+
+    /**
+     * @param capacity
+     *            Maximum number of datagrams.
+     */
+    public PacketQueue(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1.");
+        this.capacity = capacity;
+        packets = new ArrayDeque<KtnDatagram>(capacity);
+    }
+
+    /**
+     * Add a datagram to the queue and wake one waiting thread.
+     *
+     * @param packet
+     *            The datagram to add, not null.
+     * @return false if the queue is full, in which case the datagram is not
+     *         added.
+     */
+    public synchronized boolean offer(KtnDatagram packet) {
+        if (packets.size() >= capacity) {
+            return false;
+        }
+        packets.add(packet);
+        epoch++;
+        notify();
+        return true;
+    }
+
+    /**
+     * Remove the oldest datagram from the queue, without waiting.
+     *
+     * @return The datagram, or null if the queue is empty.
+     */
+    public synchronized KtnDatagram poll() {
+        return packets.poll();
+    }
+
+    /** @return true if the queue holds no datagrams. */
+    public synchronized boolean isEmpty() {
+        return packets.isEmpty();
+    }
+
+    /** @return The number of datagrams in the queue. */
+    public synchronized int size() {
+        return packets.size();
+    }
+
+    /** @return The current wakeup epoch, to be passed to await(). */
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Wait until the calling thread is woken, the deadline passes, or it is
+     * interrupted. Returns at once if a wakeup has happened since the epoch
+     * was read.
+     *
+     * @param seenEpoch
+     *            Value of {@link #epoch()} read before checking the queue.
+     * @param deadline
+     *            Deadline in {@link System#nanoTime()} time, or 0 to wait
+     *            without a deadline.
+     * @return true if the thread waited, false if it returned at once.
+     */
+    public synchronized boolean await(long seenEpoch, long deadline) {
+        if (epoch != seenEpoch) return false;
+        try {
+            if (deadline == 0) {
+                wait();
+            }
+            else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                wait(remaining / 1000000, (int)(remaining % 1000000));
+            }
+        }
+        catch (InterruptedException e) { /* do nothing */
+        }
+        return true;
+    }
+
+    /** Wake every waiting thread, e.g. when the connection is closing. */
+    public synchronized void wakeAll() {
+        epoch++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,338 @@
+package no.ntnu.fp.net.co;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A {@link Transport} on TCP like ClSocket, but with one persistent
+ * connection, a carrier, to every address and port it sends to. All
+ * datagrams for a destination go over its carrier, each as an int length
+ * followed by the encoded datagram, so that sends, ACKs and retransmissions
+ * no longer open a TCP connection each. Carriers that have not been used for
+ * {@link #IDLE_TIMEOUT} milliseconds are closed. Errors are injected as
+ * described in {@link AbstractTransport}.
+ */
+class PooledStreamTransport extends AbstractTransport {
+
+    /** Time after which an unused carrier is closed, in milliseconds. */
+    static final long IDLE_TIMEOUT = 30000;
+    /**
+     * Time to wait for a carrier to connect, in milliseconds. A datagram
+     * that waits longer would have been retransmitted anyway.
+     */
+    static final int CONNECT_TIMEOUT = RttEstimator.MAX_TIMEOUT;
+    /** Largest frame accepted from a carrier. */
+    private static final int MAX_FRAME = 1 << 20;
+    /** Put in the inbox of a listener to wake its receiver when closed. */
+    private static final KtnDatagram CANCELLED = new KtnDatagram();
+
+    /** The open carriers, by destination. */
+    private static final Map<InetSocketAddress, Carrier> carriers = new HashMap<InetSocketAddress, Carrier>();
+    /** The next sweep for idle carriers, or null when there are none. */
+    private static TimerWheel.Timeout evictor;
+
+    private Listener listener;
+
+    /**
+     * A persistent connection to one destination. The carrier is connected
+     * by the first write, without holding its lock, so that closing it does
+     * not wait for the connect.
+     */
+    private static class Carrier {
+        private final InetSocketAddress target;
+        /** Held by the thread that connects, so that only one does. */
+        private final Object connectLock = new Object();
+        private Socket socket;
+        /** The socket that is connecting, closed by {@link #close()}. */
+        private Socket connecting;
+        private DataOutputStream out;
+        private boolean closed;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Carrier(InetSocketAddress target) {
+            this.target = target;
+        }
+
+        /** Write one frame, connecting first if needed. */
+        void write(ByteBuffer encoded) throws IOException {
+            connect();
+            synchronized (this) {
+                if (closed) throw new IOException("Carrier to " + target + " is closed");
+                out.writeInt(encoded.remaining());
+                out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+                out.flush();
+            }
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Connect the carrier unless it is connected, waiting at most
+         * {@link #CONNECT_TIMEOUT} milliseconds.
+         */
+        private void connect() throws IOException {
+            synchronized (connectLock) {
+                Socket s;
+                synchronized (this) {
+                    if (closed) throw new IOException("Carrier to " + target + " is closed");
+                    if (socket != null) return;
+                    s = connecting = new Socket();
+                }
+                try {
+                    s.setTcpNoDelay(true);
+                    s.connect(target, CONNECT_TIMEOUT);
+                }
+                catch (SocketTimeoutException e) {
+                    closeQuietly(s);
+                    throw new ConnectException("Timed out connecting to " + target);
+                }
+                catch (IOException e) {
+                    closeQuietly(s);
+                    throw e;
+                }
+                finally {
+                    synchronized (this) {
+                        connecting = null;
+                    }
+                }
+                synchronized (this) {
+                    if (closed) {
+                        closeQuietly(s);
+                        throw new IOException("Carrier to " + target + " is closed");
+                    }
+                    socket = s;
+                    out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                }
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            if (connecting != null) closeQuietly(connecting);
+            if (socket != null) closeQuietly(socket);
+        }
+    }
+
+    protected void transmit(ByteBuffer encoded, InetSocketAddress target) throws IOException {
+        Carrier carrier = carrier(target);
+        try {
+            carrier.write(encoded);
+        }
+        catch (ConnectException e) {
+            discard(carrier);
+            throw e;
+        }
+        catch (IOException e) {
+            // Closed by the other side or evicted: try once on a new carrier.
+            discard(carrier);
+            carrier = carrier(target);
+            try {
+                carrier.write(encoded);
+            }
+            catch (IOException ex) {
+                discard(carrier);
+                throw ex;
+            }
+        }
+    }
+
+    public KtnDatagram receive(int port) throws IOException {
+        Listener current;
+        synchronized (this) {
+            if (listener == null) listener = new Listener(port);
+            current = listener;
+        }
+        return current.take();
+    }
+
+    public synchronized void cancelReceive() throws IOException {
+        if (listener != null) listener.close();
+    }
+
+    /** @return The carrier to a destination, created if there is none. */
+    private static synchronized Carrier carrier(InetSocketAddress target) {
+        Carrier carrier = carriers.get(target);
+        if (carrier == null) {
+            carrier = new Carrier(target);
+            carriers.put(target, carrier);
+            if (evictor == null) scheduleEviction();
+        }
+        return carrier;
+    }
+
+    /** Close a carrier and forget it. */
+    private static void discard(Carrier carrier) {
+        synchronized (PooledStreamTransport.class) {
+            if (carriers.get(carrier.target) == carrier) carriers.remove(carrier.target);
+        }
+        carrier.close();
+    }
+
+    private static void scheduleEviction() {
+        evictor = TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, IDLE_TIMEOUT / 2);
+    }
+
+    /** Close the carriers that have been idle for {@link #IDLE_TIMEOUT}. */
+    private static void evictIdle() {
+        List<Carrier> idle = new LinkedList<Carrier>();
+        long now = System.currentTimeMillis();
+        synchronized (PooledStreamTransport.class) {
+            for (Iterator<Carrier> i = carriers.values().iterator(); i.hasNext();) {
+                Carrier carrier = i.next();
+                if (now - carrier.lastUsed >= IDLE_TIMEOUT) {
+                    i.remove();
+                    idle.add(carrier);
+                }
+            }
+            evictor = null;
+            if (!carriers.isEmpty()) scheduleEviction();
+        }
+        for (Carrier carrier : idle) {
+            Log.writeToLog("Closing idle carrier to " + carrier.target, "PooledStreamTransport");
+            carrier.close();
+        }
+    }
+
+    /**
+     * Accepts the carriers of other hosts on one port, and reads their
+     * datagrams with one thread per carrier.
+     */
+    private static class Listener {
+        private final int port;
+        private final ServerSocket server = new ServerSocket();
+        private final BlockingQueue<KtnDatagram> inbox = new LinkedBlockingQueue<KtnDatagram>();
+        /** Carriers from other hosts, guarded by itself. */
+        private final List<Socket> inbound = new LinkedList<Socket>();
+        private volatile boolean closed;
+
+        Listener(int port) throws IOException {
+            this.port = port;
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port));
+            Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    acceptLoop();
+                }
+            }, "PooledStreamTransport-" + port);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void acceptLoop() {
+            while (!closed) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                }
+                catch (IOException e) {
+                    if (!closed) Log.writeToLog("Accept failed: " + e.getMessage(), "PooledStreamTransport");
+                    continue;
+                }
+                synchronized (inbound) {
+                    if (closed) {
+                        closeQuietly(socket);
+                        return;
+                    }
+                    inbound.add(socket);
+                }
+                Thread reader = new Thread(new Runnable() {
+                    public void run() {
+                        readLoop(socket);
+                    }
+                }, "PooledStreamTransport-" + port + "-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+
+        /** Read frames from a carrier until it is closed. */
+        private void readLoop(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (!closed) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FRAME) {
+                        throw new IOException("Bad frame length " + length);
+                    }
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    KtnDatagram packet = decode(ByteBuffer.wrap(frame));
+                    if (packet != null) inbox.add(packet);
+                }
+            }
+            catch (IOException e) {
+                // The carrier was closed, by either side.
+            }
+            finally {
+                synchronized (inbound) {
+                    inbound.remove(socket);
+                }
+                closeQuietly(socket);
+            }
+        }
+
+        KtnDatagram take() throws IOException {
+            KtnDatagram packet;
+            try {
+                packet = inbox.take();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Receive interrupted");
+            }
+            if (packet == CANCELLED) {
+                inbox.add(CANCELLED);
+                throw new IOException("Receive cancelled");
+            }
+            return packet;
+        }
+
+        void close() {
+            closed = true;
+            try {
+                server.close();
+            }
+            catch (IOException e) {
+                // Ignore.
+            }
+            synchronized (inbound) {
+                for (Socket socket : inbound) {
+                    closeQuietly(socket);
+                }
+                inbound.clear();
+            }
+            inbox.add(CANCELLED);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
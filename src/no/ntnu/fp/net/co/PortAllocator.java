@@ -0,0 +1,181 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out the local ports of accepted connections, and takes them back
+ * when the connections are closed. The ports in use are bits in an array of
+ * longs, set and cleared with compare-and-set, so no thread ever waits for
+ * a lock. Each allocation starts looking at the word after the one the
+ * previous allocation started at, so a port is not reused right after it
+ * is released, and concurrent allocations seldom try the same word.<br>
+ * <br>
+ * Ports that a connection is created with are reserved as well, so that an
+ * accepted connection never gets the port of a listening one.
+ *
+ * @see ConnectionImpl
+ */
+public class PortAllocator {
+
+    /** First port handed out by the shared allocator. */
+    public static final int FIRST_PORT = 10000;
+    /** Port after the last one handed out by the shared allocator. */
+    public static final int END_PORT = 40000;
+
+    private static PortAllocator shared;
+
+    private final int first, end;
+    /** Bit i of word w is set when port first + 64 * w + i is in use. */
+    private final AtomicLongArray words;
+    /** The word the next allocation starts looking at. */
+    private final AtomicInteger nextWord = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicInteger allocations = new AtomicInteger();
+    private final AtomicInteger releases = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * @param first
+     *            The first port to hand out.
+     * @param end
+     *            The port after the last one to hand out.
+     */
+    public PortAllocator(int first, int end) {
+        if (end <= first) {
+            throw new IllegalArgumentException("Empty port range.");
+        }
+        this.first = first;
+        this.end = end;
+        words = new AtomicLongArray((end - first + 63) / 64);
+        //Bits past the end of the range are in use for good
+        int tail = (end - first) % 64;
+        if (tail != 0) {
+            words.set(words.length() - 1, -1L << tail);
+        }
+    }
+
+    /** @return The allocator shared by all connections. */
+    public static synchronized PortAllocator getShared() {
+        if (shared == null) {
+            shared = new PortAllocator(FIRST_PORT, END_PORT);
+        }
+        return shared;
+    }
+
+    /**
+     * Take a free port.
+     *
+     * @return The port, or -1 if every port is in use.
+     */
+    public int allocate() {
+        int start = Math.abs(nextWord.getAndIncrement() % words.length());
+        for (int i = 0; i < words.length(); i++) {
+            int w = (start + i) % words.length();
+            long word;
+            while ((word = words.get(w)) != -1L) {
+                long bit = Long.lowestOneBit(~word);
+                if (words.compareAndSet(w, word, word | bit)) {
+                    allocations.incrementAndGet();
+                    taken();
+                    return first + 64 * w + Long.numberOfTrailingZeros(bit);
+                }
+            }
+        }
+        failures.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * Mark a given port as in use. Ports outside the range are ignored.
+     *
+     * @return true if the port was free and is now reserved by the caller,
+     *         which must release it again.
+     */
+    public boolean reserve(int port) {
+        if (port < first || port >= end) {
+            return false;
+        }
+        int w = (port - first) / 64;
+        long bit = 1L << ((port - first) % 64);
+        long word;
+        do {
+            word = words.get(w);
+            if ((word & bit) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(w, word, word | bit));
+        taken();
+        return true;
+    }
+
+    /**
+     * Return a port taken with {@link #allocate()} or
+     * {@link #reserve(int)}.
+     */
+    public void release(int port) {
+        if (port < first || port >= end) {
+            return;
+        }
+        int w = (port - first) / 64;
+        long bit = 1L << ((port - first) % 64);
+        long word;
+        do {
+            word = words.get(w);
+            if ((word & bit) == 0) {
+                throw new IllegalStateException("Port " + port + " is not in use.");
+            }
+        } while (!words.compareAndSet(w, word, word & ~bit));
+        inUse.decrementAndGet();
+        releases.incrementAndGet();
+    }
+
+    private void taken() {
+        int now = inUse.incrementAndGet();
+        int max;
+        while (now > (max = peak.get()) && !peak.compareAndSet(max, now))
+            ;
+    }
+
+    /** @return The number of ports in the range. */
+    public int getCapacity() {
+        return end - first;
+    }
+
+    /** @return The number of ports in use. */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /** @return The largest number of ports that have been in use at once. */
+    public int getPeakInUse() {
+        return peak.get();
+    }
+
+    /** @return The share of the ports in use, from 0 to 1. */
+    public double getUtilisation() {
+        return (double)inUse.get() / getCapacity();
+    }
+
+    /** @return The number of ports handed out by {@link #allocate()}. */
+    public int getAllocations() {
+        return allocations.get();
+    }
+
+    /** @return The number of ports released. */
+    public int getReleases() {
+        return releases.get();
+    }
+
+    /** @return The number of calls of {@link #allocate()} that found no free port. */
+    public int getFailures() {
+        return failures.get();
+    }
+
+    public String toString() {
+        return getInUse() + " of " + getCapacity() + " ports in use (peak " + getPeakInUse() + "), "
+                + getAllocations() + " allocated, " + getReleases() + " released, " + getFailures()
+                + " failed";
+    }
+}
@@ -0,0 +1,208 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Measures contention on the packet queues of a connection, shared by one
+ * application thread that takes data packets and a number of protocol
+ * threads that take ACKs, while dispatcher threads put packets in. It runs
+ * the same load twice: once on synchronized lists with wait() and
+ * notifyAll() on one monitor, as AbstractConnection used to, and once on
+ * {@link PacketQueue}s, which each have a monitor of their own. Both are
+ * bounded to {@link AbstractConnection#QUEUE_CAPACITY} packets per queue,
+ * and a dispatcher that finds a queue full waits for room.<br>
+ * <br>
+ * It prints the throughput, the delay from put to take, and the number of
+ * wasted wakeups: a thread that waited, woke up, and found nothing to
+ * take.<br>
+ * <br>
+ * Usage: QueueContentionBenchmark [packets] [dispatchers] [protocolThreads]
+ */
+public class QueueContentionBenchmark {
+
+    /** The queue pair under test, one internal and one external queue. */
+    private interface Queues {
+        /** Put a packet in, waiting while the queue is full. */
+        void put(KtnDatagram packet);
+
+        /** Take a packet of the given kind, null after the deadline. */
+        KtnDatagram take(boolean internal, long deadline);
+    }
+
+    /** The old scheme: synchronized lists and notifyAll() on one monitor. */
+    private static class MonitorQueues implements Queues {
+        private final List<KtnDatagram> internal = Collections.synchronizedList(new LinkedList<KtnDatagram>());
+        private final List<KtnDatagram> external = Collections.synchronizedList(new LinkedList<KtnDatagram>());
+
+        public synchronized void put(KtnDatagram packet) {
+            List<KtnDatagram> queue = packet.getFlag() == Flag.NONE ? external : internal;
+            while (queue.size() >= AbstractConnection.QUEUE_CAPACITY) {
+                waitQuietly(0);
+            }
+            queue.add(packet);
+            notifyAll();
+        }
+
+        public synchronized KtnDatagram take(boolean internalPacket, long deadline) {
+            List<KtnDatagram> queue = internalPacket ? internal : external;
+            while (queue.isEmpty()) {
+                long remaining = (deadline - System.nanoTime()) / 1000000;
+                if (remaining <= 0) return null;
+                waitQuietly(remaining);
+                if (queue.isEmpty()) wasted.incrementAndGet();
+            }
+            notifyAll(); // there is room for the dispatchers
+            return queue.remove(0);
+        }
+
+        private void waitQuietly(long timeout) {
+            try {
+                wait(timeout);
+            }
+            catch (InterruptedException e) { /* do nothing */
+            }
+        }
+    }
+
+    /** The new scheme: a monitor per queue, waking one thread per packet. */
+    private static class QueueMonitors implements Queues {
+        private final PacketQueue internal = new PacketQueue(AbstractConnection.QUEUE_CAPACITY);
+        private final PacketQueue external = new PacketQueue(AbstractConnection.QUEUE_CAPACITY);
+        /** Free places in each queue, as a connection never waits for room. */
+        private final Semaphore internalRoom = new Semaphore(AbstractConnection.QUEUE_CAPACITY);
+        private final Semaphore externalRoom = new Semaphore(AbstractConnection.QUEUE_CAPACITY);
+
+        public void put(KtnDatagram packet) {
+            boolean data = packet.getFlag() == Flag.NONE;
+            (data ? externalRoom : internalRoom).acquireUninterruptibly();
+            (data ? external : internal).offer(packet);
+        }
+
+        public KtnDatagram take(boolean internalPacket, long deadline) {
+            PacketQueue queue = internalPacket ? internal : external;
+            boolean waited = false;
+            while (true) {
+                long epoch = queue.epoch();
+                KtnDatagram packet = queue.poll();
+                if (packet != null) {
+                    (internalPacket ? internalRoom : externalRoom).release();
+                    return packet;
+                }
+                if (waited) wasted.incrementAndGet();
+                if (System.nanoTime() - deadline >= 0) return null;
+                waited = queue.await(epoch, deadline);
+            }
+        }
+    }
+
+    private static final AtomicLong wasted = new AtomicLong();
+    /** Time base for the put time stored in each packet. */
+    private static final long epoch = System.nanoTime();
+
+    public static void main(String[] args) throws InterruptedException {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int dispatchers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int protocolThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        System.out.println(packets + " packets, " + dispatchers + " dispatcher(s), 1 application thread, "
+                + protocolThreads + " protocol thread(s)");
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT.
+            boolean print = round == 1;
+            run("monitor + notifyAll ", new MonitorQueues(), packets, dispatchers, protocolThreads, print);
+            run("monitor per queue   ", new QueueMonitors(), packets, dispatchers, protocolThreads, print);
+        }
+    }
+
+    private static void run(String name, final Queues queues, int packets, int dispatchers,
+            int protocolThreads, boolean print) throws InterruptedException {
+        // Half the packets are data for the application, half are ACKs.
+        final int perDispatcher = packets / dispatchers / 2 * 2;
+        final int dataPackets = perDispatcher / 2 * dispatchers;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong acksLeft = new AtomicLong(dataPackets);
+        final long[] delays = new long[2 * dataPackets];
+        final AtomicLong taken = new AtomicLong();
+        List<Thread> threads = new LinkedList<Thread>();
+        wasted.set(0);
+
+        for (int i = 0; i < dispatchers; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    await(start);
+                    for (int n = 0; n < perDispatcher; n++) {
+                        KtnDatagram packet = new KtnDatagram();
+                        packet.setFlag(n % 2 == 0 ? Flag.NONE : Flag.ACK);
+                        packet.setAck((int)((System.nanoTime() - epoch) / 1000));
+                        queues.put(packet);
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            public void run() {
+                await(start);
+                for (int n = 0; n < dataPackets; n++) {
+                    record(queues.take(false, System.nanoTime() + 60000000000L), delays, taken);
+                }
+            }
+        });
+        for (int i = 0; i < protocolThreads; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    await(start);
+                    while (acksLeft.get() > 0) {
+                        // Short deadlines, like receiveAck() in the send window.
+                        KtnDatagram ack = queues.take(true, System.nanoTime() + 20000000L);
+                        if (ack != null) {
+                            acksLeft.decrementAndGet();
+                            record(ack, delays, taken);
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long before = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long millis = Math.max(1, (System.nanoTime() - before) / 1000000);
+
+        if (print) {
+            int count = (int)Math.min(taken.get(), delays.length);
+            long[] sorted = Arrays.copyOf(delays, count);
+            Arrays.sort(sorted);
+            System.out.println(name + ": " + millis + " ms, " + (count * 1000L / millis)
+                    + " packets/s, delay p50 " + sorted[count / 2] + " us, p99 "
+                    + sorted[(int)(count * 0.99)] + " us, " + wasted.get() + " wasted wakeups");
+        }
+    }
+
+    private static void record(KtnDatagram packet, long[] delays, AtomicLong taken) {
+        long delay = (System.nanoTime() - epoch) / 1000 - packet.getAck();
+        int index = (int)taken.getAndIncrement();
+        if (index < delays.length) delays[index] = delay;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) { /* do nothing */
+        }
+    }
+}
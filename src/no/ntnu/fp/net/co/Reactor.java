@@ -0,0 +1,242 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Receives the datagrams of many connections on a few threads, for the UDP
+ * transport. Every local port is a non-blocking DatagramChannel registered
+ * with the {@link Selector} of one of the event loops, and every datagram
+ * that arrives is decoded and handed to
+ * {@link AbstractConnection#deliver(KtnDatagram)} on the loop thread. An
+ * idle connection therefore costs a channel and no thread, where a
+ * {@link ReceiveDispatcher} costs two.<br>
+ * <br>
+ * deliver() only holds the monitor of a connection while it builds and
+ * sends an ACK, which does not block on UDP. A connection with a
+ * {@link MessageListener} also gets its messages on the loop thread, see
+ * {@link ConnectionImpl#setMessageListener(MessageListener)}.
+ *
+ * @see Transports#UDP
+ */
+public class Reactor {
+
+    /** Number of event loops of the shared reactor. */
+    public static final int DEFAULT_THREADS = 1;
+
+    /** Times to retry binding a port that a closed channel still holds. */
+    private static final int BIND_RETRIES = 5;
+
+    private static Reactor shared;
+
+    private final Loop[] loops;
+    private int nextLoop;
+    /** The registered ports. */
+    private final Map<Integer, Registration> registrations = new ConcurrentHashMap<Integer, Registration>();
+
+    /** A local port, and the connection its datagrams are delivered to. */
+    private static class Registration {
+        private final DatagramChannel channel;
+        private final Loop loop;
+        private volatile AbstractConnection connection;
+
+        Registration(DatagramChannel channel, Loop loop, AbstractConnection connection) {
+            this.channel = channel;
+            this.loop = loop;
+            this.connection = connection;
+        }
+    }
+
+    /** One selector and the thread that waits on it. */
+    private static class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Registration> pending = new ConcurrentLinkedQueue<Registration>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(UdpTransport.MAX_DATAGRAM);
+
+        Loop(int index) throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, "Reactor-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void add(Registration registration) {
+            pending.add(registration);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Registration registration;
+                    while ((registration = pending.poll()) != null) {
+                        if (registration.channel.isOpen()) {
+                            registration.channel.register(selector, SelectionKey.OP_READ, registration);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) read((Registration)key.attachment());
+                    }
+                }
+                catch (IOException e) {
+                    Log.writeToLog("Exception in event loop: " + e.getMessage(), "Reactor");
+                }
+            }
+        }
+
+        /** Deliver every datagram waiting on a channel. */
+        private void read(Registration registration) {
+            while (true) {
+                buffer.clear();
+                try {
+                    if (registration.channel.receive(buffer) == null) return;
+                }
+                catch (IOException e) {
+                    if (registration.channel.isOpen()) {
+                        Log.writeToLog("Exception while receiving: " + e.getMessage(), "Reactor");
+                    }
+                    return;
+                }
+                buffer.flip();
+                KtnDatagram packet = AbstractTransport.decode(buffer);
+                if (packet == null) continue;
+                try {
+                    registration.connection.deliver(packet);
+                }
+                catch (RuntimeException e) {
+                    Log.writeToLog("Exception while delivering: " + e, "Reactor");
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a reactor.
+     *
+     * @param threads
+     *            Number of event loops, each with a thread of its own.
+     */
+    public Reactor(int threads) throws IOException {
+        loops = new Loop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(i);
+        }
+    }
+
+    /**
+     * @return The reactor of this process, with {@link #DEFAULT_THREADS}
+     *         event loops, started on first use.
+     */
+    public static synchronized Reactor getShared() throws IOException {
+        if (shared == null) {
+            shared = new Reactor(DEFAULT_THREADS);
+        }
+        return shared;
+    }
+
+    /**
+     * Start receiving on a port, or redirect the port to the given
+     * connection if it is registered already.
+     *
+     * @param port
+     *            Port to listen for packets on.
+     * @param connection
+     *            Connection to deliver the packets to.
+     * @throws IOException
+     *             If the port could not be bound.
+     */
+    public void register(int port, AbstractConnection connection) throws IOException {
+        Registration registration = registrations.get(port);
+        if (registration != null) {
+            registration.connection = connection;
+            return;
+        }
+        synchronized (this) {
+            registration = registrations.get(port);
+            if (registration != null) {
+                registration.connection = connection;
+                return;
+            }
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                bind(channel, port);
+                channel.configureBlocking(false);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            Loop loop = loops[nextLoop++ % loops.length];
+            registration = new Registration(channel, loop, connection);
+            registrations.put(port, registration);
+            loop.add(registration);
+        }
+    }
+
+    /**
+     * Stop receiving on a port, if its datagrams go to the given connection.
+     *
+     * @param port
+     *            Port to stop listening on.
+     * @param connection
+     *            Connection that no longer wants packets.
+     */
+    public synchronized void unregister(int port, AbstractConnection connection) {
+        Registration registration = registrations.get(port);
+        if (registration == null || registration.connection != connection) return;
+        registrations.remove(port);
+        try {
+            registration.channel.close();
+        }
+        catch (IOException e) {
+            // Ignore.
+        }
+        // The socket is released once the selector has dropped the key.
+        registration.loop.selector.wakeup();
+    }
+
+    /** @return The number of ports being received on. */
+    public int getRegisteredPorts() {
+        return registrations.size();
+    }
+
+    /** @return The number of event loop threads. */
+    public int getThreads() {
+        return loops.length;
+    }
+
+    private static void bind(DatagramChannel channel, int port) throws IOException {
+        for (int tries = 0;; tries++) {
+            try {
+                channel.bind(new InetSocketAddress(port));
+                return;
+            }
+            catch (BindException e) {
+                // A channel closed a moment ago may not have let go yet.
+                if (tries >= BIND_RETRIES) throw e;
+                try {
+                    Thread.sleep(TimerWheel.TICK);
+                }
+                catch (InterruptedException ex) { /* do nothing */
+                }
+            }
+        }
+    }
+}
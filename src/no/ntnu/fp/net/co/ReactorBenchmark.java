@@ -0,0 +1,123 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.fp.net.admin.Log;
+
+/**
+ * Shows that idle connections on the UDP transport cost no threads. It opens
+ * a number of connections that send one message each and then stay idle,
+ * and prints the number of live threads in the process as the count grows.
+ * The server side takes its messages through a {@link MessageListener}, so
+ * no thread waits in receive(); with a {@link ReceiveDispatcher} per
+ * connection the count would grow by two threads per connection.<br>
+ * <br>
+ * Each connection binds a UDP port on both sides. To stay under the limit of
+ * open files with many connections, run the two sides as two processes.<br>
+ * <br>
+ * Usage: ReactorBenchmark [both|server|client] [connections] [port] [host]
+ */
+public class ReactorBenchmark {
+
+    /** First local port tried by the client side. */
+    private static final int FIRST_CLIENT_PORT = 40000;
+    /** How long the connections are left idle before the last count. */
+    private static final long IDLE_MILLIS = 5000;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        String role = args.length > 0 ? args[0] : "both";
+        final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        final int port = args.length > 2 ? Integer.parseInt(args[2]) : 5555;
+        String host = args.length > 3 ? args[3] : "localhost";
+
+        Log.setLogName("ReactorBenchmark-" + role);
+        Transports.setType(Transports.UDP);
+        report("start", 0);
+
+        Thread server = null;
+        final AtomicInteger received = new AtomicInteger();
+        if (!role.equals("client")) {
+            server = new Thread(new Runnable() {
+                public void run() {
+                    serve(port, connections, received);
+                }
+            }, "ReactorBenchmark-server");
+            server.start();
+        }
+        if (!role.equals("server")) {
+            List<Connection> open = connect(InetAddress.getByName(host), port, connections);
+            Thread.sleep(IDLE_MILLIS);
+            report("client idle", open.size());
+        }
+        if (server != null) {
+            server.join();
+            while (received.get() < connections) {
+                Thread.sleep(100);
+            }
+            Thread.sleep(IDLE_MILLIS);
+            report("server idle", connections);
+            System.out.println("messages received: " + received.get());
+        }
+        System.exit(0);
+    }
+
+    /** Accept connections, and count their messages through a listener. */
+    private static void serve(int port, int connections, final AtomicInteger received) {
+        MessageListener counter = new MessageListener() {
+            public void messageReceived(Connection connection, String message) {
+                received.incrementAndGet();
+            }
+
+            public void connectionClosed(Connection connection) {
+            }
+        };
+        ConnectionImpl listening = new ConnectionImpl(port);
+        int accepted = 0;
+        while (accepted < connections) {
+            try {
+                ConnectionImpl connection = (ConnectionImpl)listening.accept();
+                connection.setMessageListener(counter);
+                if (++accepted % 1000 == 0) report("server", accepted);
+            }
+            catch (IOException e) {
+                // The handshake failed, the client tries again.
+            }
+        }
+    }
+
+    /** Open connections and send one message on each. */
+    private static List<Connection> connect(InetAddress host, int port, int connections) {
+        List<Connection> open = new ArrayList<Connection>(connections);
+        int localPort = FIRST_CLIENT_PORT;
+        long start = System.currentTimeMillis();
+        while (open.size() < connections) {
+            ConnectionImpl connection = new ConnectionImpl(localPort++);
+            try {
+                connection.connect(host, port);
+                connection.send("hello " + open.size());
+                open.add(connection);
+                if (open.size() % 1000 == 0) report("client", open.size());
+            }
+            catch (IOException e) {
+                // The local port is taken or the handshake failed: next port.
+            }
+        }
+        System.out.println(connections + " connections in " + (System.currentTimeMillis() - start) + " ms");
+        return open;
+    }
+
+    private static void report(String what, int connections) {
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println(what + ": " + connections + " connections, " + threads.getThreadCount()
+                + " threads, " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + " MB heap, "
+                + PortAllocator.getShared().getInUse() + " ports allocated");
+    }
+}
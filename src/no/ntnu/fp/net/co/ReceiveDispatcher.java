@@ -0,0 +1,142 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Long-lived receiver for one local port. One thread stays blocked in
+ * {@link Transport#receive(int)} and goes straight back after every
+ * datagram, as ClSocket only delivers datagrams while someone is receiving.
+ * A second thread hands the datagrams to the connection, see
+ * {@link AbstractConnection#deliver(KtnDatagram)}, so that the receiving
+ * thread never waits for the monitor of the connection. The datagrams
+ * waiting between the two are bounded by
+ * {@link AbstractConnection#QUEUE_CAPACITY}; beyond that they are dropped
+ * and left to retransmission, like a full packet queue of the connection.
+ * The UDP transport uses the {@link Reactor} instead, which needs no thread
+ * per port.
+ */
+class ReceiveDispatcher {
+
+    /** The running dispatchers, by local port. */
+    private static Map<Integer, ReceiveDispatcher> dispatchers = new HashMap<Integer, ReceiveDispatcher>();
+
+    /** Port to listen on. */
+    private final int port;
+    /** Connection the datagrams are delivered to. */
+    private volatile AbstractConnection connection;
+    /** Datagrams received, but not yet delivered. */
+    private final BlockingQueue<KtnDatagram> inbox = new LinkedBlockingQueue<KtnDatagram>(
+            AbstractConnection.QUEUE_CAPACITY);
+    private final Transport socket = Transports.create();
+    private volatile boolean running = true;
+    private Thread receiver, router;
+
+    private ReceiveDispatcher(int port, AbstractConnection connection) {
+        this.port = port;
+        this.connection = connection;
+    }
+
+    /**
+     * Start receiving on a port, or redirect the dispatcher already running
+     * on it to the given connection.
+     *
+     * @param port
+     *            Port to listen for packets on.
+     * @param connection
+     *            Connection to deliver the packets to.
+     */
+    static synchronized void start(int port, AbstractConnection connection) {
+        ReceiveDispatcher dispatcher = dispatchers.get(port);
+        if (dispatcher != null) {
+            dispatcher.connection = connection;
+            return;
+        }
+        dispatcher = new ReceiveDispatcher(port, connection);
+        dispatchers.put(port, dispatcher);
+        dispatcher.startThreads();
+    }
+
+    /**
+     * Stop receiving on a port, if the dispatcher delivers to the given
+     * connection.
+     *
+     * @param port
+     *            Port to stop listening on.
+     * @param connection
+     *            Connection that no longer wants packets.
+     */
+    static synchronized void stop(int port, AbstractConnection connection) {
+        ReceiveDispatcher dispatcher = dispatchers.get(port);
+        if (dispatcher != null && dispatcher.connection == connection) {
+            dispatchers.remove(port);
+            dispatcher.stopThreads();
+        }
+    }
+
+    private void startThreads() {
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receiveLoop();
+            }
+        }, "ReceiveDispatcher-" + port);
+        router = new Thread(new Runnable() {
+            public void run() {
+                routeLoop();
+            }
+        }, "ReceiveDispatcher-" + port + "-router");
+        receiver.setDaemon(true);
+        router.setDaemon(true);
+        receiver.start();
+        router.start();
+    }
+
+    private void stopThreads() {
+        running = false;
+        try {
+            socket.cancelReceive();
+        }
+        catch (IOException e) {
+            // Ignore.
+        }
+        router.interrupt();
+    }
+
+    /** Receive datagrams until stopped. */
+    private void receiveLoop() {
+        while (running) {
+            try {
+                KtnDatagram packet = socket.receive(port);
+                if (packet != null && !inbox.offer(packet)) {
+                    Log.writeToLog(packet, "Inbox full, dropping packet", "ReceiveDispatcher");
+                }
+            }
+            catch (Exception e) {
+                if (!running) break;
+                Log.writeToLog("Exception while receiving: " + e.getMessage(), "ReceiveDispatcher");
+                try {
+                    Thread.sleep(10);
+                }
+                catch (InterruptedException ex) { /* do nothing */
+                }
+            }
+        }
+    }
+
+    /** Deliver received datagrams to the connection until stopped. */
+    private void routeLoop() {
+        while (running) {
+            try {
+                connection.deliver(inbox.take());
+            }
+            catch (InterruptedException e) { /* check running */
+            }
+        }
+    }
+}
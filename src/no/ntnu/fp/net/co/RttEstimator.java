@@ -0,0 +1,111 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Estimates the round trip time of a connection and computes the
+ * retransmission timeout from it, following RFC 6298: a smoothed round trip
+ * time (SRTT) and its variation (RTTVAR) are updated for every sample, and
+ * the timeout is SRTT + 4 * RTTVAR. Each expired timeout doubles the timeout
+ * until a new sample is taken or an ACK for new data resets the backoff.
+ * The timeout is always kept between
+ * {@link #MIN_TIMEOUT} and {@link #MAX_TIMEOUT}.<br>
+ * <br>
+ * Callers must follow Karn's rule: never sample the round trip time of a
+ * packet that has been retransmitted, as it is unknown which transmission
+ * the ack belongs to.
+ *
+ * @see AbstractConnection#RETRANSMIT
+ */
+public class RttEstimator {
+
+    /** Lower bound for the retransmission timeout, in milliseconds. */
+    public static final int MIN_TIMEOUT = 200;
+
+    /** Upper bound for the retransmission timeout, in milliseconds. */
+    public static final int MAX_TIMEOUT = 6400;
+
+    /** Smoothed round trip time, negative until the first sample. */
+    private double srtt = -1;
+    /** Round trip time variation. */
+    private double rttvar;
+    /** Timeout computed from the estimate, before backoff. */
+    private int baseTimeout;
+    /** Number of times the timeout has been doubled since the last sample. */
+    private int backoffs;
+
+    /**
+     * @param initialTimeout
+     *            Timeout to use until the first sample is taken.
+     */
+    public RttEstimator(int initialTimeout) {
+        baseTimeout = clamp(initialTimeout);
+        backoffs = 0;
+    }
+
+    /**
+     * Add a round trip time sample. This also cancels any backoff.
+     *
+     * @param rtt
+     *            Measured round trip time, in milliseconds.
+     */
+    public synchronized void addSample(long rtt) {
+        if (rtt < 0) return;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        }
+        else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        baseTimeout = clamp((long)Math.ceil(srtt + 4 * rttvar));
+        backoffs = 0;
+    }
+
+    /** Double the timeout after it has expired. */
+    public synchronized void backoff() {
+        if (getTimeout() < MAX_TIMEOUT) backoffs++;
+    }
+
+    /**
+     * Go back to the timeout before backoff, without taking a sample. Called
+     * when an ACK for new data arrives: the path delivers again, even when
+     * Karn's rule forbids sampling the packet that was acked. Otherwise a
+     * lossy connection whose packets are all retransmitted stays at
+     * {@link #MAX_TIMEOUT}.
+     */
+    public synchronized void resetBackoff() {
+        backoffs = 0;
+    }
+
+    /**
+     * @return Current retransmission timeout in milliseconds, including
+     *         backoff.
+     */
+    public synchronized int getTimeout() {
+        return clamp((long)baseTimeout << backoffs);
+    }
+
+    /**
+     * Time to wait for an ack before giving up. As with
+     * {@link AbstractConnection#TIMEOUT}, this leaves room for three
+     * retransmissions and a half.
+     *
+     * @return Receive timeout in milliseconds.
+     */
+    public int getReceiveTimeout() {
+        int timeout = getTimeout();
+        return 3 * timeout + (timeout / 2);
+    }
+
+    /**
+     * @return Smoothed round trip time in milliseconds, or -1 if no sample
+     *         has been taken.
+     */
+    public synchronized int getSmoothedRtt() {
+        return srtt < 0 ? -1 : (int)Math.round(srtt);
+    }
+
+    private static int clamp(long timeout) {
+        return (int)Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+}
@@ -1,30 +1,32 @@
 package no.ntnu.fp.net.co;
 
 import java.io.IOException;
-import java.util.TimerTask;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.co.AbstractConnection;
 
 /**
  * A helper class used when sending datagrams and waiting for ack. The class
- * specifies a TimerTask used in the Timer in the send-method of an
- * Connection-implementation. The class will resend a datagram using a socket at
- * timeout. The datagram and socket are specified in the constructor.
+ * specifies a task run on the shared {@link TimerWheel} in the send-method of
+ * an Connection-implementation. The class will resend a datagram using a
+ * socket at timeout. The datagram and socket are specified in the constructor.
  * 
  * @see AbstractConnection#simplySendPacket(KtnDatagram)
- * @see java.util.TimerTask
- * @see java.util.Timer
+ * @see TimerWheel
  * @author Stein Jakob Nordb
  */
-public class SendTimer extends TimerTask {
+public class SendTimer implements Runnable {
 
-    private ClSocket socket;
+    private Transport socket;
     private KtnDatagram packet;
-    private int tries;
+    private volatile int tries;
+    /** Time between sends, or 0 to send only once. */
+    private long period;
+    /** The pending resend on the timer wheel. */
+    private TimerWheel.Timeout timeout;
+    private boolean cancelled;
 
     /**
      * Simple constructor.
@@ -34,12 +36,32 @@ public class SendTimer extends TimerTask {
      * @param packet
      *            - the packet to send if timeout
      */
-    public SendTimer(ClSocket socket, KtnDatagram packet) {
+    public SendTimer(Transport socket, KtnDatagram packet) {
         this.socket = socket;
         this.packet = packet;
         tries = 0;
     }
 
+    /**
+     * Send the datagram at once, and then every period milliseconds until
+     * {@link #cancel()} is called.
+     * 
+     * @param period
+     *            - time between sends in milliseconds
+     */
+    public void start(long period) {
+        this.period = period;
+        TimerWheel.getShared().execute(this);
+    }
+
+    /**
+     * Stop resending the datagram.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (timeout != null) timeout.cancel();
+    }
+
     /**
      * Perform a packet (re)send. The method will be called upon a timeout from
      * the assosiated timer. If called, it means that a correct ack is not
@@ -47,6 +69,9 @@ public class SendTimer extends TimerTask {
      * same socket.
      */
     public void run() {
+        synchronized (this) {
+            if (cancelled) return;
+        }
         try {
             Log.writeToLog(packet, "Sending this datagram (try: " + ++tries + ")", "SendTimer");
             
@@ -60,5 +85,17 @@ public class SendTimer extends TimerTask {
             Log.writeToLog("ERROR: Could not establish a connection to " + packet.getDest_addr()
                     + ":" + packet.getDest_port(), "SendTimer");
         }
+        synchronized (this) {
+            if (!cancelled && period > 0) {
+                timeout = TimerWheel.getShared().schedule(this, period);
+            }
+        }
+    }
+
+    /**
+     * @return Number of times the datagram has been sent so far.
+     */
+    public int getTries() {
+        return tries;
     }
 }
@@ -0,0 +1,54 @@
+package no.ntnu.fp.net.co;
+
+import java.util.zip.CRC32;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.Util;
+
+/**
+ * A message serialized once, to be sent to many connections. KtnDatagram
+ * serializes its payload and computes the CRC32 checksum of it each time a
+ * payload is set; a datagram built from a SharedPayload gets the bytes and
+ * the checksum computed here instead, and only its header is its own. The
+ * checksum of a KtnDatagram covers the payload alone, so it is the same for
+ * every recipient.<br>
+ * <br>
+ * The bytes are shared by all the datagrams and must never be changed.
+ *
+ * @see BroadcastConnection
+ */
+public final class SharedPayload {
+
+    private final String text;
+    private final byte[] bytes;
+    private final long checksum;
+
+    /**
+     * @param text
+     *            The message, can not be null.
+     */
+    public SharedPayload(String text) {
+        if (text == null) throw new IllegalArgumentException("Payload can not be null.");
+        this.text = text;
+        bytes = Util.toByteArray(text);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        checksum = crc.getValue();
+    }
+
+    /** @return The message. */
+    public String getText() {
+        return text;
+    }
+
+    /** @return The checksum of the serialized message. */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /** Set the payload and checksum of a datagram to the shared ones. */
+    void applyTo(KtnDatagram packet) {
+        packet.setPayloadAsBytes(bytes);
+        packet.setChecksum(checksum);
+    }
+}
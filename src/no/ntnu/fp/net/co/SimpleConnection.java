@@ -6,6 +6,7 @@
  */
 package no.ntnu.fp.net.co;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -15,20 +16,34 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import no.ntnu.fp.net.co.Connection;
 
 /**
  * @author sebjorns
  *
+ * Every message on the stream starts with a byte giving its type, text or
+ * binary, so that a receive can tell a message of the other kind from its
+ * own. A message of the other kind is left for the receive that takes it.
  */
-public class SimpleConnection implements Connection {
+public class SimpleConnection implements BinaryConnection {
+
+  /** Type of a message sent with send(String): a writeUTF() string follows. */
+  private static final byte TEXT = 0;
+  /** Type of a message sent with send(ByteBuffer): a length and the bytes follow. */
+  private static final byte BINARY = 1;
 
   private Socket mySocket;
   private DataOutputStream os;
   private DataInputStream is;
   private boolean stop = true;
   private int myPort;
+  /** Type of the next message, when it has been read but not the message, or -1. */
+  private int pendingType = -1;
+  /** Length of a binary message that did not fit the buffer, or -1. */
+  private int pendingLength = -1;
 
   public SimpleConnection(int myPort) {
     this.myPort = myPort;
@@ -38,7 +53,8 @@ public class SimpleConnection implements Connection {
     throws IOException {
     this(myPort);
     this.mySocket = mySocket;
-    os = new DataOutputStream(mySocket.getOutputStream());
+    // Buffered, so that the type and the message go out in one write
+    os = new DataOutputStream(new BufferedOutputStream(mySocket.getOutputStream()));
     is = new DataInputStream(mySocket.getInputStream());
         
     stop = false;
@@ -55,7 +71,8 @@ public class SimpleConnection implements Connection {
     System.out.println("Trying to connect to: "+remoteAddress.getHostAddress()+" : "+remotePort);
     mySocket = new Socket(remoteAddress,remotePort);
 		
-    os = new DataOutputStream(mySocket.getOutputStream());
+    // Buffered, so that the type and the message go out in one write
+    os = new DataOutputStream(new BufferedOutputStream(mySocket.getOutputStream()));
     is = new DataInputStream(mySocket.getInputStream());
         
     stop = false;
@@ -86,8 +103,9 @@ public class SimpleConnection implements Connection {
    * @see no.ntnu.fp.net.co.Connection#send(java.lang.String)
    */
   public void send(String msg) throws ConnectException, IOException {
+    os.writeByte(TEXT);
     os.writeUTF(msg);
-
+    os.flush();
   }
 
   /* (non-Javadoc)
@@ -95,13 +113,78 @@ public class SimpleConnection implements Connection {
    */
   public String receive() throws ConnectException, IOException {
     while (!stop) {
+      if (nextType() != TEXT) {
+        throw new IOException("The next message is binary, use receive(ByteBuffer)");
+      }
       String s  = is.readUTF();
+      pendingType = -1;
       System.out.println("Received the text: "+s);
       return s;
     }
     throw new IOException("Can't receive. The connection is not established!");
   }
 
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.BinaryConnection#send(java.nio.ByteBuffer)
+   */
+  public void send(ByteBuffer src) throws ConnectException, IOException {
+    // A binary message is its length followed by the bytes
+    os.writeByte(BINARY);
+    os.writeInt(src.remaining());
+    if (src.hasArray()) {
+      os.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+      src.position(src.limit());
+    }
+    else {
+      byte[] bytes = new byte[src.remaining()];
+      src.get(bytes);
+      os.write(bytes);
+    }
+    os.flush();
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.BinaryConnection#receive(java.nio.ByteBuffer)
+   */
+  public int receive(ByteBuffer dst) throws ConnectException, IOException {
+    if (stop) {
+      throw new IOException("Can't receive. The connection is not established!");
+    }
+    if (nextType() != BINARY) {
+      throw new IOException("The next message is text, use receive()");
+    }
+    if (pendingLength < 0) {
+      pendingLength = is.readInt();
+    }
+    int length = pendingLength;
+    if (length > dst.remaining()) {
+      throw new BufferOverflowException();
+    }
+    if (dst.hasArray()) {
+      is.readFully(dst.array(), dst.arrayOffset() + dst.position(), length);
+      dst.position(dst.position() + length);
+    }
+    else {
+      byte[] bytes = new byte[length];
+      is.readFully(bytes);
+      dst.put(bytes);
+    }
+    pendingType = -1;
+    pendingLength = -1;
+    return length;
+  }
+
+  /** @return The type of the next message, read from the stream once. */
+  private int nextType() throws IOException {
+    if (pendingType < 0) {
+      pendingType = is.readByte();
+      if (pendingType != TEXT && pendingType != BINARY) {
+        throw new IOException("Unknown message type " + pendingType);
+      }
+    }
+    return pendingType;
+  }
+
   /* (non-Javadoc)
    * @see no.ntnu.fp.net.co.Connection#close()
    */
@@ -0,0 +1,94 @@
+package no.ntnu.fp.net.co;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import no.ntnu.fp.net.co.AbstractConnection.State;
+
+/**
+ * The transitions of the connection protocol as a table: for a state and an
+ * event, the state to go to and the action that takes the connection there.
+ * Events are packets that arrive, timers that expire and calls from the
+ * application. A connection looks up every event in the table on the thread
+ * the event happened on, so no thread has to wait for a packet or a timer;
+ * an event without a transition in the current state is ignored.
+ *
+ * @param <A>
+ *            The actions, carried out by the connection.
+ * @see ConnectionImpl
+ */
+class StateMachine<A> {
+
+    /** Things that happen to a connection. */
+    enum Event {
+        /** The application opens the connection. */
+        CONNECT,
+        /** The application waits for connections. */
+        LISTEN,
+        /** The application closes the connection. */
+        CLOSE,
+        /** A valid SYN has arrived. */
+        SYN,
+        /** A valid SYN_ACK has arrived. */
+        SYN_ACK,
+        /** A valid ACK for data, or a data packet carrying an ack, has arrived. */
+        ACK,
+        /** A valid ACK for the FIN of this side has arrived. */
+        FIN_ACK,
+        /** A valid FIN has arrived. */
+        FIN,
+        /** Every data packet of a closing connection has been acked, or given up on. */
+        DRAINED,
+        /** The timer of the current state has expired. */
+        TIMEOUT,
+        /** The timer has expired after the last resend. */
+        GIVE_UP
+    }
+
+    /** The state an event leads to, and the action on the way. */
+    static class Transition<A> {
+        final State next;
+        final A action;
+
+        Transition(State next, A action) {
+            this.next = next;
+            this.action = action;
+        }
+    }
+
+    private final Map<State, Map<Event, Transition<A>>> table = new EnumMap<State, Map<Event, Transition<A>>>(
+            State.class);
+
+    /**
+     * Add a transition to the table.
+     *
+     * @param from
+     *            The state the event happens in.
+     * @param event
+     *            The event.
+     * @param to
+     *            The state to go to.
+     * @param action
+     *            The action to carry out.
+     */
+    void add(State from, Event event, State to, A action) {
+        Map<Event, Transition<A>> row = table.get(from);
+        if (row == null) {
+            row = new EnumMap<Event, Transition<A>>(Event.class);
+            table.put(from, row);
+        }
+        if (row.containsKey(event)) {
+            throw new IllegalStateException("Two transitions from " + from + " on " + event);
+        }
+        row.put(event, new Transition<A>(to, action));
+    }
+
+    /**
+     * @return The transition for an event in a state, or null if the event
+     *         is ignored in that state.
+     */
+    Transition<A> get(State from, Event event) {
+        Map<Event, Transition<A>> row = table.get(from);
+        return row == null ? null : row.get(event);
+    }
+}
@@ -0,0 +1,75 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Connection that carries several independent streams of messages. Each
+ * stream keeps its messages in order, but does not wait for the others: a
+ * large message on one stream is sent in turn with the messages of the
+ * other streams, and a lost packet only holds back the stream it belongs
+ * to. The streams share the handshake, the send window and the congestion
+ * control of the connection.<br>
+ * <br>
+ * Stream 0 is the stream of {@link #send(String)} and {@link #receive()}.
+ *
+ * @see Connection
+ */
+public interface StreamConnection extends Connection {
+
+    /**
+     * Send a message on a stream.
+     *
+     * @param stream
+     *            the stream, from 0 to the number of streams supported
+     * @param msg
+     *            the message to be sent
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(int stream, String msg) throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Send a message on a stream without waiting for room in the send
+     * window.
+     *
+     * @param stream
+     *            the stream
+     * @param msg
+     *            the message to be sent
+     * @return a future completed when the remote instance has acknowledged
+     *         the message
+     * @see AsyncConnection#sendAsync(String)
+     */
+    public CompletableFuture<Void> sendAsync(int stream, String msg);
+
+    /**
+     * Synchronous receive of the next message on a stream. Blocks until a
+     * message is received.
+     *
+     * @param stream
+     *            the stream
+     * @return the received message
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.EOFException
+     *             if the remote instance has closed the connection and every
+     *             message of the stream has been received
+     * @throws java.io.IOException
+     *             if an I/O error occurs when receiving
+     */
+    public String receive(int stream) throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Ask for the next message on a stream. Do not mix with
+     * {@link #receive(int)} on the same stream.
+     *
+     * @param stream
+     *            the stream
+     * @return a future completed with the message
+     * @see AsyncConnection#receiveAsync()
+     */
+    public CompletableFuture<String> receiveAsync(int stream);
+
+}
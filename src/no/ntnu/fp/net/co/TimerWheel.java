@@ -0,0 +1,185 @@
+package no.ntnu.fp.net.co;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A hashed timer wheel shared by all connections in the process. It owns the
+ * retransmission and TIME_WAIT deadlines, so that a connection does not need
+ * a {@link java.util.Timer} (and thereby a thread) of its own.<br>
+ * <br>
+ * Time is divided into ticks of {@link #TICK} milliseconds. A deadline is
+ * put in the bucket of its tick, modulo the number of buckets, together with
+ * the number of whole turns of the wheel left before it expires. Scheduling
+ * and cancelling are O(1); every tick only the entries of one bucket are
+ * visited. Expired tasks are run on a shared pool of daemon threads, so a
+ * slow send does not hold up the other deadlines.
+ *
+ * @see SendTimer
+ */
+public class TimerWheel {
+
+    /** Length of a tick in milliseconds, the resolution of the wheel. */
+    public static final int TICK = 10;
+
+    /** Number of buckets, must be a power of two. */
+    private static final int BUCKETS = 512;
+
+    private static TimerWheel shared;
+
+    /**
+     * A scheduled task, linked into the bucket of its deadline.
+     */
+    public static class Timeout {
+        private final TimerWheel owner;
+        private final Runnable task;
+        private long rounds;
+        private int bucket;
+        private Timeout prev, next;
+        private boolean expired, cancelled;
+
+        private Timeout(TimerWheel owner, Runnable task) {
+            this.owner = owner;
+            this.task = task;
+        }
+
+        /**
+         * Cancel the task, unless it has already expired.
+         *
+         * @return true if the task was cancelled by this call.
+         */
+        public boolean cancel() {
+            return owner.cancel(this);
+        }
+
+        /** @return true if the task has been handed over to be run. */
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+
+    /** Heads of the linked lists of each bucket. */
+    private final Timeout[] wheel = new Timeout[BUCKETS];
+    /** The next tick to be processed. */
+    private long tick;
+    /** Time of tick 0. */
+    private final long startTime;
+    private final ExecutorService workers;
+
+    private TimerWheel() {
+        startTime = System.currentTimeMillis();
+        tick = 0;
+        workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TimerWheel worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread ticker = new Thread(new Runnable() {
+            public void run() {
+                runTicks();
+            }
+        }, "TimerWheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * @return The timer wheel of this process, started on first use.
+     */
+    public static synchronized TimerWheel getShared() {
+        if (shared == null) {
+            shared = new TimerWheel();
+        }
+        return shared;
+    }
+
+    /**
+     * Run a task once, after the given delay.
+     *
+     * @param task
+     *            The task to run.
+     * @param delay
+     *            Delay in milliseconds, rounded up to whole ticks.
+     * @return A handle for cancelling the task.
+     */
+    public synchronized Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(this, task);
+        long deadline = (System.currentTimeMillis() + Math.max(delay, 0) - startTime + TICK - 1) / TICK;
+        deadline = Math.max(deadline, tick);
+        timeout.rounds = (deadline - tick) / BUCKETS;
+        timeout.bucket = (int)(deadline & (BUCKETS - 1));
+
+        timeout.next = wheel[timeout.bucket];
+        if (timeout.next != null) timeout.next.prev = timeout;
+        wheel[timeout.bucket] = timeout;
+        return timeout;
+    }
+
+    /**
+     * Run a task at once on a worker thread of the wheel.
+     *
+     * @param task
+     *            The task to run.
+     */
+    public void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    private synchronized boolean cancel(Timeout timeout) {
+        if (timeout.expired || timeout.cancelled) return false;
+        timeout.cancelled = true;
+        unlink(timeout);
+        return true;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else wheel[timeout.bucket] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+    }
+
+    /** Process one bucket per tick, forever. */
+    private void runTicks() {
+        List<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            long sleep;
+            synchronized (this) {
+                sleep = startTime + tick * TICK - System.currentTimeMillis();
+                if (sleep <= 0) {
+                    Timeout timeout = wheel[(int)(tick & (BUCKETS - 1))];
+                    while (timeout != null) {
+                        Timeout next = timeout.next;
+                        if (timeout.rounds <= 0) {
+                            unlink(timeout);
+                            timeout.expired = true;
+                            expired.add(timeout);
+                        }
+                        else {
+                            timeout.rounds--;
+                        }
+                        timeout = next;
+                    }
+                    tick++;
+                }
+            }
+            for (Timeout timeout : expired) {
+                workers.execute(timeout.task);
+            }
+            expired.clear();
+
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException e) { /* do nothing */
+                }
+            }
+        }
+    }
+}
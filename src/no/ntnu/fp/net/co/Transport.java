@@ -0,0 +1,47 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The connectionless layer under a Connection: sends and receives single
+ * {@link KtnDatagram}s, which may be lost, delayed, duplicated or corrupted
+ * on the way. An instance is used like a {@link no.ntnu.fp.net.cl.ClSocket}:
+ * for one send, or by one thread receiving on one port. Instances are
+ * created by {@link Transports#create()}.
+ *
+ * @see Transports
+ */
+public interface Transport {
+
+    /**
+     * Send a datagram to the address and port it holds.
+     *
+     * @param packet
+     *            The datagram to send.
+     * @throws ClException
+     *             If the destination address is not valid.
+     * @throws IOException
+     *             If the datagram could not be sent.
+     */
+    void send(KtnDatagram packet) throws ClException, IOException;
+
+    /**
+     * Wait for a datagram on a local port.
+     *
+     * @param port
+     *            The port to receive on.
+     * @return The datagram, or null if what arrived was not a datagram.
+     * @throws IOException
+     *             If receiving fails, or was cancelled.
+     */
+    KtnDatagram receive(int port) throws IOException;
+
+    /**
+     * Make a thread blocked in {@link #receive(int)} return, and stop
+     * listening on the port.
+     */
+    void cancelReceive() throws IOException;
+}
@@ -0,0 +1,89 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+
+import no.ntnu.fp.net.admin.Log;
+
+/**
+ * Chooses the {@link Transport} that connections send and receive
+ * datagrams with. The choice is read from the system property
+ * {@value #PROPERTY}, or else from the element &lt;transport&gt; of
+ * settings.xml:
+ * <ul>
+ * <li>{@value #CL_SOCKET}: ClSocket of A2, the default.</li>
+ * <li>{@value #UDP}: {@link UdpTransport}.</li>
+ * <li>{@value #POOLED}: {@link PooledStreamTransport}.</li>
+ * </ul>
+ * Both ends of a connection must use the same transport.
+ */
+public final class Transports {
+
+    /** The ClSocket of A2, one TCP connection per datagram. */
+    public static final String CL_SOCKET = "cl";
+    /** UDP through a DatagramChannel. */
+    public static final String UDP = "udp";
+    /** Persistent TCP connections, one per destination. */
+    public static final String POOLED = "pooled";
+    /** System property that overrides settings.xml. */
+    public static final String PROPERTY = "ktn.transport";
+
+    private static volatile String type;
+
+    private Transports() {
+    }
+
+    /**
+     * @return A new transport of the chosen type.
+     */
+    public static Transport create() {
+        String current = getType();
+        if (UDP.equals(current)) return new UdpTransport();
+        if (POOLED.equals(current)) return new PooledStreamTransport();
+        return new ClSocketTransport();
+    }
+
+    /**
+     * @return The chosen transport, {@link #CL_SOCKET}, {@link #UDP} or
+     *         {@link #POOLED}.
+     */
+    public static String getType() {
+        if (type == null) type = readSetting();
+        return type;
+    }
+
+    /**
+     * Choose the transport for connections opened from now on.
+     *
+     * @param type
+     *            {@link #CL_SOCKET}, {@link #UDP} or {@link #POOLED}.
+     */
+    public static void setType(String type) {
+        if (!CL_SOCKET.equals(type) && !UDP.equals(type) && !POOLED.equals(type)) {
+            throw new IllegalArgumentException("Unknown transport: " + type);
+        }
+        Transports.type = type;
+    }
+
+    private static String readSetting() {
+        String value = System.getProperty(PROPERTY);
+        if (value == null) {
+            try {
+                Element transport = new SAXBuilder().build(new File("settings.xml")).getRootElement()
+                        .getChild("transport");
+                if (transport != null) value = transport.getTextTrim();
+            }
+            catch (Exception e) {
+                // No settings yet, use the default.
+            }
+        }
+        if (UDP.equals(value)) return UDP;
+        if (POOLED.equals(value)) return POOLED;
+        if (value != null && !CL_SOCKET.equals(value)) {
+            Log.writeToLog("Unknown transport " + value + ", using " + CL_SOCKET, "Transports");
+        }
+        return CL_SOCKET;
+    }
+}
@@ -0,0 +1,53 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A {@link Transport} on UDP, with one UDP packet per datagram. Errors are
+ * injected as described in {@link AbstractTransport}.
+ */
+class UdpTransport extends AbstractTransport {
+
+    /** Largest UDP payload, and so the largest encoded datagram. */
+    static final int MAX_DATAGRAM = 65507;
+
+    /** Channel for sending, shared by all instances. */
+    private static DatagramChannel sendChannel;
+
+    private DatagramChannel receiveChannel;
+    private ByteBuffer receiveBuffer;
+
+    protected void transmit(ByteBuffer encoded, InetSocketAddress target) throws IOException {
+        channel().send(encoded, target);
+    }
+
+    public KtnDatagram receive(int port) throws IOException {
+        DatagramChannel channel;
+        synchronized (this) {
+            if (receiveChannel == null) {
+                receiveChannel = DatagramChannel.open();
+                receiveChannel.bind(new InetSocketAddress(port));
+                receiveBuffer = ByteBuffer.allocate(MAX_DATAGRAM);
+            }
+            channel = receiveChannel;
+        }
+        receiveBuffer.clear();
+        channel.receive(receiveBuffer);
+        receiveBuffer.flip();
+        return decode(receiveBuffer);
+    }
+
+    public synchronized void cancelReceive() throws IOException {
+        if (receiveChannel != null) receiveChannel.close();
+    }
+
+    private static synchronized DatagramChannel channel() throws IOException {
+        if (sendChannel == null) sendChannel = DatagramChannel.open();
+        return sendChannel;
+    }
+}
@@ -12,6 +12,9 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.swing.JFrame;
 import javax.swing.JList;
@@ -19,9 +22,12 @@ import javax.swing.JOptionPane;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.BroadcastConnection;
 import no.ntnu.fp.net.co.Connection;
 import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.SharedPayload;
 import no.ntnu.fp.net.co.SimpleConnection;
+import no.ntnu.fp.net.co.TimerWheel;
 import no.ntnu.fp.net.separat.client.ChatClient;
 
 /**
@@ -37,7 +43,7 @@ public class ChatServer extends JFrame {
 
     private String addressServer = "localhost";
 
-    private ArrayList users;
+    private List<User> users;
 
     private int listenPort = 4444;
 
@@ -49,21 +55,108 @@ public class ChatServer extends JFrame {
 
     private static boolean debug = true;
 
+    /** Number of messages that may wait to be sent to one user. */
+    public static final int OUTBOUND_CAPACITY = 256;
+
+    /** Milliseconds between each time the fan-out metrics are written. */
+    private static final long METRICS_INTERVAL = 60000;
+
+    private final FanOutMetrics metrics = new FanOutMetrics();
+
+    /** Policy of new users, see {@link #setSlowConsumerPolicy(SlowConsumerPolicy, int, long)}. */
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    private volatile int maxPending = 64;
+
+    private volatile long maxStall = 10000;
+
+    /**
+     * A message waiting to be sent to users. One is made for each broadcast
+     * and put in the queue of every user, so the message is serialized once
+     * for all of them.
+     */
+    private static class Outbound {
+        final String message;
+        final SharedPayload payload;
+        final long queuedAt = System.nanoTime();
+
+        Outbound(String message) {
+            this.message = message;
+            payload = new SharedPayload(message);
+        }
+    }
+
     //Lagrer info om hver og en bruker
     private class User {
         public String name;
         private RecieveThread recieveThread;
+        private SendThread sendThread;
         public Connection conn;
+        /** Messages waiting to be sent, so a slow user only holds back itself. */
+        private final BlockingQueue<Outbound> outbound = new LinkedBlockingQueue<Outbound>(OUTBOUND_CAPACITY);
+        private volatile SlowConsumerPolicy policy = slowConsumerPolicy;
+        private volatile int maxPending = ChatServer.this.maxPending;
+        private volatile long maxStall = ChatServer.this.maxStall;
+        /** When the sender thread started the send it is in, or 0. */
+        private volatile long sendingSince;
+        /** Set by the watchdog while one send takes more than maxStall. */
+        private volatile boolean stalled;
+        /** Fires maxStall after a send started, see {@link #checkStall(long)}. */
+        private TimerWheel.Timeout watchdog;
+        /** Set when the server has disconnected the user for being too slow. */
+        private volatile boolean dropped;
 
         public User(String name, Connection conn) {
             this.name = name;
             this.conn = conn;
+            sendThread = new SendThread();
+            sendThread.start();
             recieveThread = new RecieveThread();
             recieveThread.start();
         }
 
+        /** Sends the messages of the outbound queue, one at a time. */
+        private class SendThread extends Thread {
+            public volatile boolean run = true;
+
+            public SendThread() {
+                super("ChatServer sender " + User.this.name);
+                setDaemon(true);
+            }
+
+            public void run() {
+                while (run) {
+                    Outbound next;
+                    try {
+                        next = outbound.take();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    metrics.dequeued();
+                    long started = System.nanoTime();
+                    sendingSince = started;
+                    armWatchdog(started, maxStall);
+                    User.this.send(next);
+                    sendingSince = 0;
+                    stalled = false;
+                    disarmWatchdog();
+                }
+                //Messages still queued will not be sent
+                while (outbound.poll() != null) {
+                    metrics.dequeued();
+                }
+                if (dropped) {
+                    try {
+                        conn.close();
+                    } catch (IOException e) {
+                        DBG("User.SendThread: " + e.getMessage() + " while closing connection of " + name);
+                    }
+                }
+            }
+        }
+
         private class RecieveThread extends Thread {
-            public boolean run = true;
+            public volatile boolean run = true;
 
             public void run() {
                 run = true;
@@ -74,8 +167,15 @@ public class ChatServer extends JFrame {
                         e.printStackTrace();
                     }
 		    catch (EOFException e) {
+		      if (dropped) {
+			//The server has already removed the user
+			run = false;
+			continue;
+		      }
 		      DBG("User.run(): Disconnect was requested.");
 		      run = false;
+		      sendThread.run = false;
+		      sendThread.interrupt();
 		      try { conn.close(); }
 		      catch (IOException ioe) {
 			System.err.println("Chat server: IOException while" +
@@ -130,15 +230,173 @@ public class ChatServer extends JFrame {
             }
         }
 
-        private void send(String mess) {
+        /**
+         * Put a message in the outbound queue. Returns at once. If the user
+         * has {@link #maxPending} messages pending, or the watchdog has found
+         * the connection stalled, the slow consumer policy of the user is
+         * applied first. If the queue is still full the message is dropped.
+         * 
+         * @return false if the user must be disconnected.
+         */
+        private boolean enqueue(Outbound message) {
+            if (dropped) {
+                return true;
+            }
+            if (stalled || outbound.size() >= Math.min(maxPending, OUTBOUND_CAPACITY)) {
+                if (policy == SlowConsumerPolicy.DISCONNECT) {
+                    return false;
+                }
+                makeRoom(message.message);
+            }
+            if (outbound.offer(message)) {
+                metrics.queued(outbound.size());
+            } else {
+                metrics.rejected();
+                DBG("User.enqueue(): Queue of " + name + " is full, dropping message '" + message.message + "'");
+            }
+            return true;
+        }
+
+        /**
+         * Drop a pending message as the policy says: coalesce user lists if
+         * the policy is COALESCE and there are any, otherwise drop the oldest.
+         * 
+         * @param mess
+         *            The message about to be queued, or null.
+         */
+        private void makeRoom(String mess) {
+            if (policy == SlowConsumerPolicy.COALESCE && coalesce(mess)) {
+                return;
+            }
+            if (outbound.poll() != null) {
+                metrics.dequeued();
+                metrics.droppedOldest();
+            }
+        }
+
+        /**
+         * Remove pending user lists that are replaced by a newer one, either
+         * pending or the message about to be queued.
+         * 
+         * @param mess
+         *            The message about to be queued, or null.
+         * @return true if a message was removed.
+         */
+        private boolean coalesce(String mess) {
+            List<Outbound> lists = new ArrayList<Outbound>();
+            for (Iterator<Outbound> iter = outbound.iterator(); iter.hasNext();) {
+                Outbound pending = iter.next();
+                if (isUserList(pending.message)) {
+                    lists.add(pending);
+                }
+            }
+            if ((mess == null || !isUserList(mess)) && !lists.isEmpty()) {
+                //The newest pending list is kept
+                lists.remove(lists.size() - 1);
+            }
+            boolean removed = false;
+            for (Iterator<Outbound> iter = lists.iterator(); iter.hasNext();) {
+                if (outbound.remove(iter.next())) {
+                    metrics.dequeued();
+                    metrics.coalesced();
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+
+        /** Check the send that started at the given time after delay ms. */
+        private synchronized void armWatchdog(final long started, long delay) {
+            watchdog = TimerWheel.getShared().schedule(new Runnable() {
+                public void run() {
+                    checkStall(started);
+                }
+            }, delay);
+        }
+
+        private synchronized void disarmWatchdog() {
+            if (watchdog != null) {
+                watchdog.cancel();
+                watchdog = null;
+            }
+        }
+
+        /**
+         * Run by the watchdog. If the send that started at the given time is
+         * still going after {@link #maxStall} milliseconds, the policy is
+         * applied without waiting for the next broadcast: the user is
+         * disconnected, or one pending message is dropped and the check is
+         * repeated after another maxStall.
+         */
+        private void checkStall(long started) {
+            if (dropped || sendingSince != started) {
+                return;
+            }
+            long left = maxStall - (System.nanoTime() - started) / 1000000;
+            if (left > 0) {
+                //The limit was raised since the watchdog was armed
+                rearmWatchdog(started, left);
+                return;
+            }
+            if (!stalled) {
+                stalled = true;
+                metrics.stalled();
+                DBG("User.checkStall(): " + name + " has been sending one message for " + maxStall + " ms.");
+            }
+            if (policy == SlowConsumerPolicy.DISCONNECT) {
+                List<User> slow = new ArrayList<User>();
+                slow.add(this);
+                ChatServer.this.disconnect(slow);
+                return;
+            }
+            makeRoom(null);
+            rearmWatchdog(started, maxStall);
+        }
+
+        /** Arm the watchdog again, unless the send has ended meanwhile. */
+        private synchronized void rearmWatchdog(long started, long delay) {
+            if (watchdog != null && sendingSince == started) {
+                armWatchdog(started, delay);
+            }
+        }
+
+        /**
+         * Disconnect the user for being too slow. The connection is closed
+         * by the sender thread, so the caller does not wait for it.
+         */
+        private void drop() {
+            dropped = true;
+            disarmWatchdog();
+            recieveThread.run = false;
+            sendThread.run = false;
+            sendThread.interrupt();
+            metrics.disconnected();
+        }
+
+        /** Set how the server deals with this user falling behind. */
+        private void setPolicy(SlowConsumerPolicy policy, int maxPending, long maxStall) {
+            this.policy = policy;
+            this.maxPending = maxPending;
+            this.maxStall = maxStall;
+        }
+
+        /** Send a queued message. Only called by the sender thread. */
+        private void send(Outbound next) {
+            String mess = next.message;
             try {
-                conn.send(mess);
+                if (conn instanceof BroadcastConnection) {
+                    ((BroadcastConnection) conn).send(next.payload);
+                } else {
+                    conn.send(mess);
+                }
+                metrics.sent((System.nanoTime() - next.queuedAt) / 1000);
             } catch (ConnectException e) {
 	      DBG("User.send(): ConnectException: '" + e.getMessage() +
 		  "' while sending message '" + mess + "'");
 	    } catch (EOFException exp) {
 	      DBG("User.send(): Disconnect requested.");
 	      this.recieveThread.run = false;
+	      sendThread.run = false;
             } catch (IOException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -146,11 +404,91 @@ public class ChatServer extends JFrame {
         }
     }
 
+    /**
+     * Queue a message for every user. The message is serialized once for all
+     * of them, and the sender thread of each user sends it, so a slow user
+     * does not delay the others. Users that the slow
+     * consumer policy disconnects are removed, and the others told so.
+     */
     private synchronized void broadcast(String mess) {
-        for (Iterator iter = users.iterator(); iter.hasNext();) {
-            User element = (User) iter.next();
-            element.send(mess);
+        metrics.broadcast();
+        Outbound message = new Outbound(mess);
+        List<User> slow = new ArrayList<User>();
+        for (Iterator<User> iter = users.iterator(); iter.hasNext();) {
+            User element = iter.next();
+            if (!element.enqueue(message)) {
+                slow.add(element);
+            }
         }
+        disconnect(slow);
+    }
+
+    /**
+     * Disconnect users that are not keeping up, and tell the others. Users
+     * that are already gone are skipped.
+     */
+    private synchronized void disconnect(List<User> slow) {
+        boolean removed = false;
+        for (Iterator<User> iter = slow.iterator(); iter.hasNext();) {
+            User element = iter.next();
+            if (!users.remove(element)) {
+                continue;
+            }
+            DBG("disconnect(): Disconnecting " + element.name + ", who is not keeping up.");
+            element.drop();
+            removed = true;
+            broadcast("***: " + element.name + " disconnected (too slow).");
+        }
+        if (removed) {
+            broadcast(getUsers().toString());
+        }
+    }
+
+    /** @return true if the message is a list of the users, as made by {@link #getUsers()}. */
+    private static boolean isUserList(String mess) {
+        return mess.startsWith("[") && mess.endsWith("]");
+    }
+
+    /**
+     * Set how the server deals with users that fall behind: users that
+     * connect from now on get this policy.
+     * 
+     * @param policy
+     *            What to do with a user that falls behind.
+     * @param maxPending
+     *            The number of pending messages at which the policy is
+     *            applied, at most {@link #OUTBOUND_CAPACITY}.
+     * @param maxStall
+     *            The milliseconds a connection may spend sending one message
+     *            before the policy is applied.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy, int maxPending, long maxStall) {
+        slowConsumerPolicy = policy;
+        this.maxPending = maxPending;
+        this.maxStall = maxStall;
+    }
+
+    /**
+     * Set how the server deals with one user falling behind.
+     * 
+     * @return false if there is no user with that name.
+     * @see #setSlowConsumerPolicy(SlowConsumerPolicy, int, long)
+     */
+    public synchronized boolean setSlowConsumerPolicy(String name, SlowConsumerPolicy policy, 
+            int maxPending, long maxStall) {
+        for (Iterator<User> iter = users.iterator(); iter.hasNext();) {
+            User element = iter.next();
+            if (element.name.equals(name)) {
+                element.setPolicy(policy, maxPending, maxStall);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return The counters of the messages sent to the users. */
+    public FanOutMetrics getMetrics() {
+        return metrics;
     }
 
     public ChatServer(int port) {
@@ -169,7 +507,7 @@ public class ChatServer extends JFrame {
         } catch (UnknownHostException e1) {
             e1.printStackTrace();
         }
-        users = new ArrayList();
+        users = new ArrayList<User>();
 
         if (SIMPLE_CONNECTION)
             server = new SimpleConnection(listenPort);
@@ -209,6 +547,25 @@ public class ChatServer extends JFrame {
             }
         };
         listener.start();
+
+        Thread reporter = new Thread("ChatServer metrics") {
+            public void run() {
+                long reported = 0;
+                while (true) {
+                    try {
+                        Thread.sleep(METRICS_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (metrics.getBroadcasts() != reported) {
+                        reported = metrics.getBroadcasts();
+                        DBG("Fan-out: " + metrics);
+                    }
+                }
+            }
+        };
+        reporter.setDaemon(true);
+        reporter.start();
     }
 
     private void newMessage(String message, String from) {
@@ -217,10 +574,10 @@ public class ChatServer extends JFrame {
         }
     }
 
-    private ArrayList getUsers() {
-        ArrayList userList = new ArrayList();
+    private List<String> getUsers() {
+        List<String> userList = new ArrayList<String>();
         for (int i = 0; i < users.size(); i++) {
-            userList.add(((User) users.get(i)).name);
+            userList.add(users.get(i).name);
         }
         userlist.setListData(userList.toArray());
         return userList;
@@ -0,0 +1,195 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for the messages a ChatServer sends out to its users: how deep
+ * the outbound queues of the users get, and how long a message waits from
+ * the broadcast until the connection of a user has taken it. The latencies
+ * are kept in buckets of powers of two microseconds, so the distribution
+ * of a long running server takes a fixed amount of memory and percentiles
+ * are read as the upper bound of a bucket.<br>
+ * <br>
+ * The slow consumer policies of the users are counted as well: messages
+ * dropped to make room, user lists coalesced, users disconnected, and
+ * sends that stalled for longer than the limit of the user.
+ *
+ * @see ChatServer
+ */
+public class FanOutMetrics {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLong broadcasts = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    /** Bucket i counts latencies below 2^(i+1) microseconds. */
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final AtomicLong stalled = new AtomicLong();
+
+    /** A message is broadcast to every user. */
+    void broadcast() {
+        broadcasts.incrementAndGet();
+    }
+
+    /**
+     * A message is put in the outbound queue of a user.
+     *
+     * @param userDepth
+     *            The number of messages in the queue of the user, with this
+     *            one.
+     */
+    void queued(int userDepth) {
+        queued.incrementAndGet();
+        depth.incrementAndGet();
+        int peak;
+        while (userDepth > (peak = peakDepth.get()) && !peakDepth.compareAndSet(peak, userDepth))
+            ;
+    }
+
+    /** A message did not fit in the outbound queue of a user. */
+    void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    /** A message has left the outbound queue of a user, sent or not. */
+    void dequeued() {
+        depth.decrementAndGet();
+    }
+
+    /**
+     * A message has been handed to the connection of a user.
+     *
+     * @param micros
+     *            The time since the message was queued.
+     */
+    void sent(long micros) {
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, micros)));
+        latencies.incrementAndGet(bucket);
+        sent.incrementAndGet();
+        totalLatency.addAndGet(micros);
+        long max;
+        while (micros > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, micros))
+            ;
+    }
+
+    /** The oldest pending message of a user was dropped to make room. */
+    void droppedOldest() {
+        droppedOldest.incrementAndGet();
+    }
+
+    /** A pending user list was dropped for a newer one. */
+    void coalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    /** A user was disconnected for being too slow. */
+    void disconnected() {
+        disconnected.incrementAndGet();
+    }
+
+    /** The watchdog found a user whose connection is stuck on one send. */
+    void stalled() {
+        stalled.incrementAndGet();
+    }
+
+    /** @return The number of broadcasts. */
+    public long getBroadcasts() {
+        return broadcasts.get();
+    }
+
+    /** @return The number of messages put in outbound queues. */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /** @return The number of messages dropped because a queue was full. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /** @return The number of messages in all outbound queues now. */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /** @return The largest number of messages that one queue has held. */
+    public int getPeakDepth() {
+        return peakDepth.get();
+    }
+
+    /** @return The number of messages handed to connections. */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /** @return The mean fan-out latency in microseconds. */
+    public long getMeanLatency() {
+        long n = sent.get();
+        return n == 0 ? 0 : totalLatency.get() / n;
+    }
+
+    /** @return The largest fan-out latency in microseconds. */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    /**
+     * @param fraction
+     *            The share of the messages, from 0 to 1.
+     * @return The fan-out latency in microseconds that the given share of
+     *         the messages stayed below, rounded up to a power of two.
+     */
+    public long getLatencyPercentile(double fraction) {
+        long n = sent.get();
+        long wanted = (long)Math.ceil(n * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latencies.get(i);
+            if (seen >= wanted && seen > 0) {
+                return Math.min(1L << (i + 1), getMaxLatency());
+            }
+        }
+        return getMaxLatency();
+    }
+
+    /** @return The number of pending messages dropped to make room. */
+    public long getDroppedOldest() {
+        return droppedOldest.get();
+    }
+
+    /** @return The number of pending user lists dropped for a newer one. */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /** @return The number of users disconnected for being too slow. */
+    public long getDisconnected() {
+        return disconnected.get();
+    }
+
+    /** @return The number of sends that took longer than the stall limit of the user. */
+    public long getStalled() {
+        return stalled.get();
+    }
+
+    public String toString() {
+        return getBroadcasts() + " broadcasts, " + getQueued() + " queued, " + getRejected()
+                + " rejected, depth " + getDepth() + " (peak " + getPeakDepth() + "), " + getSent()
+                + " sent, latency mean " + getMeanLatency() + " us, p50 " + getLatencyPercentile(0.5)
+                + " us, p99 " + getLatencyPercentile(0.99) + " us, max " + getMaxLatency()
+                + " us; slow consumers: " + getDroppedOldest() + " dropped, " + getCoalesced()
+                + " coalesced, " + getDisconnected() + " disconnected, " + getStalled()
+                + " stalled";
+    }
+}
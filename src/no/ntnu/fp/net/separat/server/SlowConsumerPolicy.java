@@ -0,0 +1,26 @@
+package no.ntnu.fp.net.separat.server;
+
+/**
+ * What a ChatServer does with a user that does not keep up with the
+ * messages sent to it. The policy is applied when a message is queued for a
+ * user that has too many messages pending, and by a watchdog when the
+ * connection of the user has spent too long on one message.
+ *
+ * @see ChatServer#setSlowConsumerPolicy(String, SlowConsumerPolicy, int, long)
+ */
+public enum SlowConsumerPolicy {
+
+    /** Drop the oldest pending message to make room for the new one. */
+    DROP_OLDEST,
+
+    /**
+     * Drop pending user lists that a newer user list replaces. Only user
+     * lists, messages of the form "[a, b]", are coalesced: when there is no
+     * stale user list pending, this acts as {@link #DROP_OLDEST}, whatever
+     * the kind of the oldest message.
+     */
+    COALESCE,
+
+    /** Disconnect the user. */
+    DISCONNECT
+}